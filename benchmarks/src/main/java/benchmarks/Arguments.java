@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.util.Properties;
+
+/**
+ * Command line arguments of the load-testing tools, given as name=value pairs
+ */
+
+public class Arguments {
+
+	private final Properties values = new Properties();
+
+	public Arguments(String[] args) {
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator <= 0) {
+				throw new RuntimeException("Invalid argument (expected name=value): " + arg);
+			}
+			values.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+		}
+	}
+
+	/**
+	 * @throws RuntimeException
+	 *             if the argument is missing
+	 */
+	public String get(String name) {
+		String value = values.getProperty(name);
+		if (value == null) {
+			throw new RuntimeException("Missing argument: " + name + "=...");
+		}
+		return value;
+	}
+
+	public String get(String name, String defaultValue) {
+		return values.getProperty(name, defaultValue);
+	}
+
+	public long getLong(String name, long defaultValue) {
+		String value = values.getProperty(name);
+		try {
+			return value == null ? defaultValue : Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid number: " + name + "=" + value);
+		}
+	}
+
+	public double getDouble(String name, double defaultValue) {
+		String value = values.getProperty(name);
+		try {
+			return value == null ? defaultValue : Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Invalid number: " + name + "=" + value);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with allocation profiling, accepting the usual JMH command line options (e.g. a benchmark
+ * name pattern, -p fixture=path/to/snapshot.smile to replace the synthetic snapshot, -rf json)
+ */
+
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+
+		new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.servlet.Servlet;
+import javax.servlet.annotation.WebServlet;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+
+import servlets.CacheStatisticsAPI;
+import servlets.MetricsAPI;
+import servlets.SnapshotAPI;
+import servlets.SnapshotRangeAPI;
+import servlets.SnapshotStreamAPI;
+import servlets.TrendAPI;
+
+/**
+ * Runs the service in an embedded Tomcat for load tests, with the configuration given by SNAPSHOT_CONF as in
+ * production. The servlets are registered as declared by their annotations, there is no annotation scanning of the
+ * benchmarks jar. Setup management is left out, load tests do not launch aggregators.
+ *
+ * Usage: SNAPSHOT_CONF=... java -cp benchmarks.jar benchmarks.EmbeddedService [port=8080]
+ */
+
+public class EmbeddedService {
+
+	public static final String CONTEXT_PATH = "/DAQSnapshotService";
+
+	private static final Class<?>[] SERVLETS = { SnapshotAPI.class, SnapshotRangeAPI.class, SnapshotStreamAPI.class,
+			CacheStatisticsAPI.class, MetricsAPI.class, TrendAPI.class };
+
+	public static void main(String[] args) throws Exception {
+		Arguments arguments = new Arguments(args);
+
+		Tomcat tomcat = new Tomcat();
+		tomcat.setPort((int) arguments.getLong("port", 8080));
+		tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+
+		Context context = tomcat.addContext(CONTEXT_PATH, new File(".").getAbsolutePath());
+		context.addApplicationListener("ContextListener");
+
+		for (Class<?> servletClass : SERVLETS) {
+			WebServlet declaration = servletClass.getAnnotation(WebServlet.class);
+			String[] mappings = declaration.urlPatterns().length > 0 ? declaration.urlPatterns() : declaration.value();
+
+			Wrapper wrapper = Tomcat.addServlet(context, servletClass.getSimpleName(),
+					(Servlet) servletClass.newInstance());
+			wrapper.setAsyncSupported(declaration.asyncSupported());
+			for (String mapping : mappings) {
+				context.addServletMappingDecoded(mapping, servletClass.getSimpleName());
+			}
+		}
+
+		tomcat.getConnector(); // default connector on the port
+		tomcat.start();
+		System.out.println("Serving on http://localhost:" + tomcat.getConnector().getPort() + CONTEXT_PATH);
+		tomcat.getServer().await();
+	}
+}
@@ -0,0 +1,108 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tasks.GetLatestTask;
+import utils.DAQSetup;
+import utils.LatestSnapshot;
+import utils.Metrics;
+import utils.SetupManager;
+
+/**
+ * Latest snapshot discovery over a synthetic hierarchy whose newest snapshot is the fixture, through the on-demand
+ * discovery of a single setup. The setup is not registered with the setup manager, so nothing is published and
+ * every call runs a discovery unit on the pool (the hand-over to the pool thread is included in the timings).
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetLatestTaskBenchmark {
+
+	/** how long a discovery may take before the benchmark fails (ms) */
+	private static final long TIMEOUT = 60000;
+
+	@Param(SyntheticSnapshot.NAME)
+	public String fixture;
+
+	/** hours of snapshots in the tree (two days by default, discovery only descends the newest branch) */
+	@Param("48")
+	public int hours;
+
+	private File dir;
+
+	private SetupManager setupManager;
+
+	private DAQSetup setup;
+
+	private ExecutorService discoveryPool;
+
+	private GetLatestTask pollingTask;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("latest-snapshot").toFile();
+		File root = new File(dir, "snapshots");
+
+		SnapshotTrees.create(root, hours, System.currentTimeMillis(), SnapshotTrees.getFixture(fixture));
+
+		setupManager = new SetupManager(new Properties());
+		setup = new DAQSetup("benchmark");
+		setup.setSnapshotPath(root.getAbsolutePath() + "/");
+		discoveryPool = Executors.newSingleThreadExecutor();
+
+		// first run decodes the newest snapshot, later ones find it unchanged
+		long failures = Metrics.discoveryFailures.sum();
+		pollingTask = new GetLatestTask(setupManager, discoveryPool, TIMEOUT);
+		pollingTask.discoverLatest(setup, TIMEOUT);
+		if (Metrics.discoveryFailures.sum() != failures) {
+			throw new RuntimeException("Could not discover the latest snapshot of " + root);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		discoveryPool.shutdownNow();
+		SnapshotTrees.delete(dir);
+	}
+
+	/** Periodic run finding no new snapshot, the most frequent case */
+	@Benchmark
+	public LatestSnapshot unchangedPoll() throws IOException {
+		return pollingTask.discoverLatest(setup, TIMEOUT);
+	}
+
+	/** First run for a setup: walk of the hierarchy, decoding and encoding of the newest snapshot */
+	@Benchmark
+	public LatestSnapshot firstDiscovery() throws IOException {
+		return new GetLatestTask(setupManager, discoveryPool, TIMEOUT).discoverLatest(setup, TIMEOUT);
+	}
+
+	@Benchmark
+	public List<File> findLatestDirectories() {
+		return GetLatestTask.findLatestDirectories(new File(setup.getSnapshotPath()));
+	}
+}
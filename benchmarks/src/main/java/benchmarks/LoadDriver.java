@@ -0,0 +1,181 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load driver emulating DAQView consoles: each client requests latest snapshots of a setup back to back, and a share
+ * of the requests are time queries at random times of the given range. Throughput and latency percentiles are
+ * reported per kind of request.
+ *
+ * Usage: java -cp benchmarks.jar benchmarks.LoadDriver setups=loadtest0,loadtest1 from=unixms to=unixms
+ * [url=http://localhost:8080/DAQSnapshotService] [clients=20] [duration=60] (s) [timeQueries=0.1] (share)
+ * [think=0] (ms between requests of a client) [gzip=true]
+ */
+
+public class LoadDriver {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		Arguments arguments = new Arguments(args);
+
+		final String url = arguments.get("url", "http://localhost:8080" + EmbeddedService.CONTEXT_PATH)
+				+ "/getsnapshot";
+		final String[] setups = arguments.get("setups").split(",");
+		final long from = arguments.getLong("from", 0);
+		final long to = arguments.getLong("to", 0);
+		final double timeQueries = arguments.getDouble("timeQueries", 0.1);
+		final long think = arguments.getLong("think", 0);
+		final boolean gzip = Boolean.parseBoolean(arguments.get("gzip", "true"));
+		int clients = (int) arguments.getLong("clients", 20);
+		long duration = arguments.getLong("duration", 60) * 1000;
+
+		if (timeQueries > 0 && to <= from) {
+			throw new RuntimeException("Time queries need a range: from=unixms to=unixms");
+		}
+
+		final long deadline = System.currentTimeMillis() + duration;
+
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		List<Future<Statistics[]>> results = new ArrayList<Future<Statistics[]>>();
+
+		for (int i = 0; i < clients; i++) {
+			final int client = i;
+			results.add(pool.submit(new Callable<Statistics[]>() {
+				@Override
+				public Statistics[] call() throws InterruptedException {
+					Statistics latest = new Statistics();
+					Statistics time = new Statistics();
+					Random random = new Random(client); // fixed seeds, so that runs are comparable
+					String setup = setups[client % setups.length];
+					byte[] buffer = new byte[BUFFER_SIZE];
+
+					while (System.currentTimeMillis() < deadline) {
+						boolean timeQuery = random.nextDouble() < timeQueries;
+						String query = "?setup=" + setup;
+						if (timeQuery) {
+							query += "&time=" + (from + (long) (random.nextDouble() * (to - from)));
+						}
+
+						request(url + query, gzip, buffer, timeQuery ? time : latest);
+
+						if (think > 0) {
+							Thread.sleep(think);
+						}
+					}
+					return new Statistics[] { latest, time };
+				}
+			}));
+		}
+
+		Statistics latest = new Statistics();
+		Statistics time = new Statistics();
+		for (Future<Statistics[]> result : results) {
+			latest.add(result.get()[0]);
+			time.add(result.get()[1]);
+		}
+		pool.shutdown();
+
+		System.out.println(clients + " clients, " + duration / 1000 + " s");
+		latest.print("latest", duration);
+		time.print("time", duration);
+	}
+
+	/** Requests a snapshot and reads the whole response, recording its latency (or failure) */
+	private static void request(String url, boolean gzip, byte[] buffer, Statistics statistics) {
+		long start = System.nanoTime();
+		long bytes = 0;
+
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			if (gzip) {
+				connection.setRequestProperty("Accept-Encoding", "gzip");
+			}
+
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				statistics.errors++;
+				InputStream error = connection.getErrorStream();
+				if (error != null) {
+					error.close();
+				}
+				return;
+			}
+
+			// reading the response to the end lets the connection be reused (keep-alive)
+			try (InputStream in = connection.getInputStream()) {
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					bytes += read;
+				}
+			}
+		} catch (IOException e) {
+			statistics.errors++;
+			return;
+		}
+
+		statistics.record(System.nanoTime() - start, bytes);
+	}
+
+	/** Latencies of successful requests and count of failed ones, of one client or merged */
+	private static class Statistics {
+
+		private long[] latencies = new long[1024]; // ns
+
+		private int count;
+
+		private long bytes;
+
+		private long errors;
+
+		void record(long latency, long size) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = latency;
+			bytes += size;
+		}
+
+		void add(Statistics other) {
+			for (int i = 0; i < other.count; i++) {
+				record(other.latencies[i], 0);
+			}
+			bytes += other.bytes;
+			errors += other.errors;
+		}
+
+		void print(String name, long duration) {
+			if (count == 0 && errors == 0) {
+				return;
+			}
+
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+
+			System.out.println(String.format(
+					"%-8s %8d ok %6d errors %10.1f req/s %8.1f MB/s  latency (ms) p50 %8.2f p90 %8.2f p99 %8.2f p99.9 %8.2f max %8.2f",
+					name, count, errors, count * 1000.0 / duration, bytes / 1024.0 / 1024 * 1000 / duration,
+					percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9),
+					percentile(sorted, 100)));
+		}
+
+		/** @return latency (ms) at the given percentile (nearest rank) */
+		private static double percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+			return sorted[Math.max(rank, 1) - 1] / 1e6;
+		}
+	}
+}
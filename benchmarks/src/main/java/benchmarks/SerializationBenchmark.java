@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rcms.utilities.daqaggregator.data.DAQ;
+import rcms.utilities.daqaggregator.persistence.PersistenceFormat;
+import rcms.utilities.daqaggregator.persistence.StructureSerializer;
+
+/**
+ * Decoding of a stored SMILE snapshot and encoding to the formats served by the API, i.e. the work done for every
+ * new latest snapshot and for every uncached time query. The {@link SyntheticSnapshot} is used unless a stored
+ * snapshot is given with -p fixture=path/to/snapshot.smile.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param(SyntheticSnapshot.NAME)
+	public String fixture;
+
+	private String path;
+
+	private DAQ snapshot;
+
+	private final StructureSerializer serializer = new StructureSerializer();
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+
+	@Setup
+	public void setUp() {
+		path = SnapshotTrees.getFixture(fixture).getAbsolutePath();
+		snapshot = serializer.deserialize(path);
+
+		if (snapshot == null) {
+			throw new RuntimeException("Could not deserialize fixture " + path);
+		}
+	}
+
+	@Benchmark
+	public DAQ deserializeSmile() {
+		return new StructureSerializer().deserialize(path);
+	}
+
+	@Benchmark
+	public int serializeCompact() throws Exception {
+		out.reset();
+		serializer.serialize(snapshot, out, PersistenceFormat.JSONREFPREFIXEDUGLY);
+		return out.size();
+	}
+
+	@Benchmark
+	public int serializePretty() throws Exception {
+		out.reset();
+		serializer.serialize(snapshot, out, PersistenceFormat.JSONREFPREFIXED);
+		return out.size();
+	}
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.SetupManager;
+
+/**
+ * Periodic setup detection over a config directory with hundreds of DAQAggregator config files, all of them listed
+ * in the pid log, once the setups are known (i.e. the steady state of the detection task)
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SetupDetectionBenchmark {
+
+	@Param({ "100", "300" })
+	public int setups;
+
+	private File dir;
+
+	private SetupManager setupManager;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("setup-detection").toFile();
+		File configDir = new File(dir, "config");
+		configDir.mkdir();
+		File pidLog = new File(dir, "pid-index.file");
+
+		try (Writer pids = new FileWriter(pidLog)) {
+			for (int i = 0; i < setups; i++) {
+				String name = "setup" + i;
+
+				try (Writer config = new FileWriter(new File(configDir, name + ".properties"))) {
+					config.write("persistence.snapshot.dir=" + new File(dir, name).getAbsolutePath() + "/\n");
+					config.write("remark=Synthetic setup " + i + "\n");
+				}
+
+				// pids of processes which are not running, as for most setups in production
+				pids.write(name + "=" + (4000000 + i) + "\n");
+			}
+		}
+
+		Properties props = new Properties();
+		props.setProperty("daqAggregatorConfigFilesDirPath", configDir.getAbsolutePath());
+		props.setProperty("daqAggregatorPidLogFile", pidLog.getAbsolutePath());
+
+		setupManager = new SetupManager(props);
+		setupManager.detectSetups();
+
+		if (setupManager.getAvailableSetups().size() != setups) {
+			throw new RuntimeException("Expected " + setups + " setups, detected "
+					+ setupManager.getAvailableSetups().size());
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		SnapshotTrees.delete(dir);
+	}
+
+	@Benchmark
+	public void detectSetups() {
+		setupManager.detectSetups();
+	}
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.APIPersistorManager;
+import utils.SnapshotIndex;
+
+/**
+ * Selection of the snapshot nearest to a requested time (time queries), by listing the hour directory and by the
+ * time index. Snapshots are not decoded, see {@link SerializationBenchmark} for that part.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotLookupBenchmark {
+
+	/** number of distinct query times, cycled through by the benchmarks */
+	private static final int QUERIES = 1024;
+
+	/** hours of snapshots in the tree (a week by default) */
+	@Param("168")
+	public int hours;
+
+	private File dir;
+
+	private APIPersistorManager listing;
+
+	private APIPersistorManager indexed;
+
+	private Date[] queries;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("snapshot-lookup").toFile();
+		File root = new File(dir, "snapshots");
+
+		long[] range = SnapshotTrees.create(root, hours, System.currentTimeMillis(), null);
+
+		SnapshotIndex index = new SnapshotIndex(root.getAbsolutePath() + "/", new File(dir, "snapshots.idx"), null);
+		index.update();
+
+		listing = new APIPersistorManager(root.getAbsolutePath() + "/");
+		indexed = new APIPersistorManager(root.getAbsolutePath() + "/", index);
+
+		// fixed seed, so that runs are comparable
+		Random random = new Random(42);
+		queries = new Date[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			queries[i] = new Date(range[0] + (long) (random.nextDouble() * (range[1] - range[0])));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		SnapshotTrees.delete(dir);
+	}
+
+	@Benchmark
+	public File findByListing() throws IOException {
+		return listing.findSnapshotFile(nextQuery());
+	}
+
+	@Benchmark
+	public File findByIndex() throws IOException {
+		return indexed.findSnapshotFile(nextQuery());
+	}
+
+	private Date nextQuery() {
+		next = (next + 1) % QUERIES;
+		return queries[next];
+	}
+}
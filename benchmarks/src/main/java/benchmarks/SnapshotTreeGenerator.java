@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Generates a synthetic environment for load tests: snapshot hierarchies of several setups (every snapshot being the
+ * given template), the DAQAggregator config files declaring them, a pid index file and the service configuration
+ * pointing at all of these.
+ *
+ * Usage: java -cp benchmarks.jar benchmarks.SnapshotTreeGenerator output=dir [template=snapshot.smile] [setups=5]
+ * [hours=24] [period=5000] [end=unixms]
+ *
+ * Without template, snapshots are the {@link SyntheticSnapshot}.
+ */
+
+public class SnapshotTreeGenerator {
+
+	public static void main(String[] args) throws IOException {
+		Arguments arguments = new Arguments(args);
+
+		File output = new File(arguments.get("output"));
+		File template = SnapshotTrees.getFixture(arguments.get("template", SyntheticSnapshot.NAME));
+		int setups = (int) arguments.getLong("setups", 5);
+		int hours = (int) arguments.getLong("hours", 24);
+		long period = arguments.getLong("period", SnapshotTrees.SNAPSHOT_PERIOD);
+		long end = arguments.getLong("end", System.currentTimeMillis());
+
+		File configDir = new File(output, "config");
+		File pidLog = new File(output, "pid-index.file");
+		File cacheDir = new File(output, "cache");
+		File serviceConfig = new File(output, "DAQSnapshotService-server.properties");
+
+		if (!configDir.isDirectory() && !configDir.mkdirs() || !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Could not create directories in " + output);
+		}
+
+		try (Writer pids = new FileWriter(pidLog)) {
+			for (int i = 0; i < setups; i++) {
+				String name = "loadtest" + i;
+				File root = new File(output, "snapshots/" + name);
+
+				long[] range = SnapshotTrees.create(root, hours, end, period, template, true);
+
+				try (Writer config = new FileWriter(new File(configDir, name + ".DAQAggregator.properties"))) {
+					config.write("persistence.snapshot.dir = " + root.getAbsolutePath() + "/\n");
+					config.write("remark = Synthetic setup for load tests\n");
+				}
+
+				// process state does not matter for serving snapshots
+				pids.write(name + " = " + (1000 + i) + "\n");
+
+				System.out.println(name + ": snapshots from " + range[0] + " to " + range[1] + " in " + root);
+			}
+		}
+
+		try (Writer config = new FileWriter(serviceConfig)) {
+			config.write("daqAggregatorConfigFilesDirPath = " + configDir.getAbsolutePath() + "\n");
+			config.write("daqAggregatorPidLogFile = " + pidLog.getAbsolutePath() + "\n");
+			config.write("startScript = /bin/true\n");
+			config.write("latestSnapshotDiscovery = watch\n");
+			config.write("cacheDir = " + cacheDir.getAbsolutePath() + "\n");
+		}
+
+		System.out.println("Start the service with: SNAPSHOT_CONF=" + serviceConfig.getAbsolutePath()
+				+ " java -cp benchmarks.jar benchmarks.EmbeddedService");
+	}
+}
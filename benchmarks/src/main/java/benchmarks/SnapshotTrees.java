@@ -0,0 +1,122 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Calendar;
+
+/**
+ * Synthetic snapshot hierarchies (root/year/month/day/hour/unixms.smile), as written by DAQAggregator, for
+ * benchmarking and load-testing without a production persistence directory. For benchmarks of discovery and lookups,
+ * only the newest snapshot is a copy of the fixture and all others are empty files, so that trees of realistic width
+ * stay cheap to create. For load tests, every snapshot is a hard link to the fixture (or a copy, where links are not
+ * supported), so that any of them can be served.
+ */
+
+public class SnapshotTrees {
+
+	/** snapshot period of a running DAQAggregator (ms) */
+	public static final long SNAPSHOT_PERIOD = 5000;
+
+	private static final long HOUR_MILLIS = 3600000;
+
+	/**
+	 * Creates a hierarchy at the snapshot period of DAQAggregator, whose newest snapshot only is a copy of the fixture
+	 * (if given)
+	 *
+	 * @return timestamps of the first and newest snapshots
+	 */
+	public static long[] create(File root, int hours, long end, File fixture) throws IOException {
+		return create(root, hours, end, SNAPSHOT_PERIOD, fixture, false);
+	}
+
+	/**
+	 * Creates a hierarchy covering the given number of hours up to (and including) the hour of the given time, with
+	 * one snapshot per period in each hour and a temporary file being written after the newest snapshot
+	 *
+	 * @param linkAll
+	 *            true if all snapshots are to be links to the fixture, false if only the newest one
+	 * @return timestamps of the first and newest snapshots
+	 */
+	public static long[] create(File root, int hours, long end, long period, File fixture, boolean linkAll)
+			throws IOException {
+		long last = end - end % period;
+		long first = (end / HOUR_MILLIS - hours + 1) * HOUR_MILLIS;
+		boolean linksSupported = true;
+
+		File hourDir = null;
+		for (long timestamp = first; timestamp <= last; timestamp += period) {
+			if (hourDir == null || timestamp / HOUR_MILLIS != (timestamp - period) / HOUR_MILLIS) {
+				hourDir = getTimeDir(root, timestamp);
+				if (!hourDir.isDirectory() && !hourDir.mkdirs()) {
+					throw new IOException("Could not create " + hourDir);
+				}
+			}
+
+			File snapshot = new File(hourDir, timestamp + ".smile");
+			if (linkAll && linksSupported) {
+				try {
+					Files.deleteIfExists(snapshot.toPath());
+					Files.createLink(snapshot.toPath(), fixture.toPath());
+					continue;
+				} catch (IOException | UnsupportedOperationException e) {
+					linksSupported = false; // e.g. fixture on another file system, copies from now on
+				}
+			}
+
+			if (fixture != null && (timestamp == last || linkAll)) {
+				Files.copy(fixture.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				snapshot.createNewFile();
+			}
+		}
+
+		new File(hourDir, (last + period) + ".smile.tmp").createNewFile();
+
+		return new long[] { first, last };
+	}
+
+	/** @return hour directory of a snapshot time, in the local time zone like DAQAggregator */
+	public static File getTimeDir(File root, long timestamp) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(timestamp);
+
+		return new File(root, String.format("%d/%02d/%02d/%02d", calendar.get(Calendar.YEAR),
+				calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH),
+				calendar.get(Calendar.HOUR_OF_DAY)));
+	}
+
+	/**
+	 * @return fixture file at the given path, or the {@link SyntheticSnapshot} for its name
+	 * @throws RuntimeException
+	 *             if the fixture does not exist
+	 */
+	public static File getFixture(String path) {
+		if (SyntheticSnapshot.NAME.equals(path)) {
+			try {
+				return SyntheticSnapshot.getFile();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write the synthetic snapshot", e);
+			}
+		}
+
+		File fixture = new File(path);
+		if (!fixture.isFile()) {
+			throw new RuntimeException("Snapshot fixture not found: " + fixture.getAbsolutePath()
+					+ " (give the path of a snapshot, or " + SyntheticSnapshot.NAME + ")");
+		}
+		return fixture;
+	}
+
+	/** Deletes a directory with all its contents */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
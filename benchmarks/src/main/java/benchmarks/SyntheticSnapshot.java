@@ -0,0 +1,129 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import rcms.utilities.daqaggregator.data.DAQ;
+import rcms.utilities.daqaggregator.data.FED;
+import rcms.utilities.daqaggregator.data.FEDBuilder;
+import rcms.utilities.daqaggregator.data.FRL;
+import rcms.utilities.daqaggregator.data.RU;
+import rcms.utilities.daqaggregator.data.SubFEDBuilder;
+import rcms.utilities.daqaggregator.persistence.PersistenceFormat;
+import rcms.utilities.daqaggregator.persistence.StructureSerializer;
+
+/**
+ * Deterministic snapshot of the size of the central DAQ (FED builders with their RU, sub-FED builders, FRLs and
+ * FEDs), so that benchmark results of different machines and developers are comparable without a production
+ * snapshot. Metrics are drawn from a fixed seed, so every run encodes exactly the same document.
+ */
+
+public class SyntheticSnapshot {
+
+	/** fixture name selecting this snapshot instead of a file */
+	public static final String NAME = "synthetic";
+
+	public static final int FED_BUILDERS = 64;
+
+	public static final int SUB_FED_BUILDERS = 3;
+
+	public static final int FRLS = 3;
+
+	public static final int FEDS = 2;
+
+	/** snapshot time, fixed so that the document does not depend on when it is built */
+	private static final long TIMESTAMP = 1508320800000L;
+
+	private static final long SEED = 20171018;
+
+	private static File file;
+
+	/** @return the synthetic snapshot */
+	public static DAQ create() {
+		Random random = new Random(SEED);
+
+		DAQ daq = new DAQ();
+		daq.setSessionId(300000);
+		daq.setRunNumber(305000);
+		daq.setDaqState("Running");
+		daq.setLevelZeroState("Running");
+		daq.setLastUpdate(TIMESTAMP);
+
+		List<FEDBuilder> fedBuilders = new ArrayList<FEDBuilder>();
+		int srcId = 0;
+
+		for (int b = 0; b < FED_BUILDERS; b++) {
+			FEDBuilder fedBuilder = new FEDBuilder();
+			fedBuilder.setName(String.format("FB%02d", b));
+			fedBuilder.setDaq(daq);
+
+			RU ru = new RU();
+			ru.setHostname(String.format("ru-c2e%02d-%02d-01.cms", 10 + b / 16, b % 16));
+			ru.setFedBuilder(fedBuilder);
+			ru.setStateName("Enabled");
+			ru.setRate(100000 + random.nextInt(1000));
+			ru.setThroughput(2e8f + random.nextInt(1000000));
+			ru.setEventCount(1000000000L + random.nextInt(1000000));
+			fedBuilder.setRu(ru);
+
+			List<SubFEDBuilder> subFedBuilders = new ArrayList<SubFEDBuilder>();
+			for (int s = 0; s < SUB_FED_BUILDERS; s++) {
+				SubFEDBuilder subFedBuilder = new SubFEDBuilder();
+				subFedBuilder.setFedBuilder(fedBuilder);
+				subFedBuilder.setMinTrig(1000000000L);
+				subFedBuilder.setMaxTrig(1000000000L + random.nextInt(10));
+
+				List<FRL> frls = new ArrayList<FRL>();
+				for (int l = 0; l < FRLS; l++) {
+					FRL frl = new FRL();
+					frl.setGeoslot(s * FRLS + l);
+					frl.setSubFedbuilder(subFedBuilder);
+
+					Map<Integer, FED> feds = new HashMap<Integer, FED>();
+					for (int f = 0; f < FEDS; f++) {
+						FED fed = new FED();
+						fed.setSrcIdExpected(srcId++);
+						fed.setFrl(frl);
+						fed.setFrlIO(f);
+						fed.setPercentBackpressure(random.nextFloat());
+						fed.setPercentWarning(random.nextFloat());
+						fed.setPercentBusy(random.nextFloat());
+						feds.put(f, fed);
+					}
+					frl.setFeds(feds);
+					frls.add(frl);
+				}
+				subFedBuilder.setFrls(frls);
+				subFedBuilders.add(subFedBuilder);
+			}
+			fedBuilder.setSubFedbuilders(subFedBuilders);
+			fedBuilders.add(fedBuilder);
+		}
+
+		daq.setFedBuilders(fedBuilders);
+		return daq;
+	}
+
+	/**
+	 * @return the synthetic snapshot stored as DAQAggregator does (SMILE), in a temporary file written once per JVM
+	 */
+	public static synchronized File getFile() throws IOException {
+		if (file == null) {
+			File smile = File.createTempFile("synthetic-snapshot", ".smile");
+			smile.deleteOnExit();
+
+			try (OutputStream out = new FileOutputStream(smile)) {
+				new StructureSerializer().serialize(create(), out, PersistenceFormat.SMILE);
+			}
+			file = smile;
+		}
+		return file;
+	}
+}
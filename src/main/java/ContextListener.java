@@ -1,6 +1,8 @@
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -11,11 +13,18 @@ import javax.servlet.annotation.WebListener;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import tasks.ConfigWatchTask;
 import tasks.DiskUsageTask;
 import tasks.GetLatestTask;
 import tasks.SetupDetectionTask;
+import tasks.SnapshotIndexTask;
+import tasks.SnapshotWatchTask;
+import tasks.TrendBackfillTask;
 import utils.Helpers;
+import utils.LastSnapshotStore;
 import utils.SetupManager;
+import utils.SnapshotCache;
+import utils.TrendStore;
 
 /**
  * 
@@ -28,6 +37,22 @@ public class ContextListener implements javax.servlet.ServletContextListener {
 
 	private ScheduledExecutorService scheduler;
 
+	private ExecutorService watcher;
+
+	private ExecutorService configWatcher;
+
+	private ExecutorService discoveryPool;
+
+	private ExecutorService indexPool;
+
+	private ExecutorService listingPool;
+
+	private ScheduledExecutorService trendBackfill;
+
+	private LastSnapshotStore lastSnapshotStore;
+
+	private TrendStore trendStore;
+
 	private static final Logger logger = Logger.getLogger(ContextListener.class);
 
 	@Override
@@ -62,32 +87,111 @@ public class ContextListener implements javax.servlet.ServletContextListener {
 			logger.info("Initialized setupManager object");
 			event.getServletContext().setAttribute("setupManager", setupManager); // registering to global scope
 
+			// encoded snapshots served to time queries, bounded by total size
+			long cacheSize = Long.parseLong(properties.getProperty("snapshotCacheSize", "256").trim()); // MB
+			if (cacheSize > 0) {
+				event.getServletContext().setAttribute("snapshotCache", new SnapshotCache(cacheSize * 1024 * 1024));
+				logger.info("Initialized snapshot cache of " + cacheSize + " MB");
+			}
+
 			// scheduler for periodical tasks, such
 			scheduler = Executors.newScheduledThreadPool(4);
 			logger.info("Initialized scheduler");
 
+			// detect setups right away, so that the latest snapshots can be discovered (or restored) at once
+			new SetupDetectionTask(setupManager).run();
+
+			// serve the last snapshots published before a restart until discovery has caught up, and keep persisting
+			// them
+			String cacheDir = properties.getProperty("cacheDir");
+			if (cacheDir != null) {
+				lastSnapshotStore = new LastSnapshotStore(new File(cacheDir.trim(), "latest"));
+				int restored = lastSnapshotStore.restore(setupManager.getAvailableSetups());
+				setupManager.addLatestSnapshotListener(lastSnapshotStore);
+				logger.info("Restored last snapshots of " + restored + " setups");
+			}
+
 			// schedule setup detection task (once every 10s)
-			int delaySd = 5; // seconds
+			int delaySd = 10; // seconds, detected once already
 			int periodSd = 10; // seconds
 			scheduler.scheduleAtFixedRate(new SetupDetectionTask(setupManager), delaySd, periodSd, TimeUnit.SECONDS);
 			logger.info("Scheduled setup detection task: first detection will be launched after " + delaySd
 					+ "s and every " + periodSd + " afterwards");
 
-			// schedule du command at quite less frequent intervals
+			// detect setups right away when config files or the pid log change, the periodic task being the fallback
+			configWatcher = Executors.newSingleThreadExecutor();
+			configWatcher.submit(new ConfigWatchTask(setupManager, properties.getProperty("daqAggregatorConfigFilesDirPath"),
+					properties.getProperty("daqAggregatorPidLogFile")));
+			logger.info("Started configuration watch task");
+
+			// hour directories are listed (indexing) and walked (disk usage) in parallel on a bounded pool of their own
+			int listingThreads = Integer.parseInt(properties.getProperty("directoryListingThreads", "4").trim());
+			listingPool = Executors.newFixedThreadPool(listingThreads);
+
+			// schedule disk usage accounting at quite less frequent intervals (only the newest directories are walked again)
 			int delayDu = 30; // seconds
-			int periodDu = 270000000; // seconds
-			scheduler.scheduleAtFixedRate(new DiskUsageTask(setupManager), delayDu, periodDu, TimeUnit.SECONDS);
+			int periodDu = Integer.parseInt(properties.getProperty("diskUsagePeriod", "300").trim()); // seconds
+			scheduler.scheduleAtFixedRate(new DiskUsageTask(setupManager, listingPool), delayDu, periodDu,
+					TimeUnit.SECONDS);
 			logger.info("Scheduled disk usage task: first detection will be launched after " + delayDu + "s and every "
-					+ periodDu + " afterwards");
+					+ periodDu + "s afterwards");
 
 			// schedule latest snapshot discovery, to store latest snapshot for a setup without needing prompt from a
 			// request
-			int delaySn = 10000; // milliseconds
+			// each setup is processed separately on a bounded pool, so that slow setups do not hold back the others
+			int discoveryThreads = Integer.parseInt(properties.getProperty("latestSnapshotDiscoveryThreads", "4").trim());
+			long discoveryTimeout = Long.parseLong(properties.getProperty("latestSnapshotDiscoveryTimeout", "30000").trim()); // milliseconds
+			discoveryPool = Executors.newFixedThreadPool(discoveryThreads);
+			GetLatestTask getLatestTask = new GetLatestTask(setupManager, discoveryPool, discoveryTimeout);
+			event.getServletContext().setAttribute("getLatestTask", getLatestTask); // for requests arriving before the first discovery
+			int delaySn = 0; // milliseconds, all setups discovered in parallel right away
 			int periodSn = 200; // milliseconds
-			scheduler.scheduleAtFixedRate(new GetLatestTask(setupManager), delaySn, periodSn, TimeUnit.MILLISECONDS);
+
+			// "watch" discovers new snapshots from directory notifications, keeping polling as a slow fallback for
+			// filesystems which do not report all changes (e.g. NFS); "poll" (default) only relies on polling
+			String discoveryMode = properties.getProperty("latestSnapshotDiscovery", "poll").trim();
+			if (discoveryMode.equalsIgnoreCase("watch")) {
+				watcher = Executors.newSingleThreadExecutor();
+				watcher.submit(new SnapshotWatchTask(setupManager, getLatestTask));
+				logger.info("Started latest snapshots watch task");
+
+				periodSn = Integer.parseInt(properties.getProperty("latestSnapshotFallbackPeriod", "5000").trim());
+			}
+
+			scheduler.scheduleAtFixedRate(getLatestTask, delaySn, periodSn, TimeUnit.MILLISECONDS);
 			logger.info("Scheduled latest snapshots discovery task: first detection will be launched after " + delaySn
 					+ "ms and every " + periodSn + " afterwards");
 
+			// keep time indexes of all setups for point-in-time queries, built once (or loaded from the cache dir)
+			// and then updated with new snapshots only; a run waits for all setups, so runs never overlap
+			File indexDir = cacheDir != null ? new File(cacheDir.trim(), "index") : null;
+			indexPool = Executors.newFixedThreadPool(discoveryThreads);
+			int delayIx = 10000; // milliseconds, after the first latest snapshot discovery
+			int periodIx = Integer.parseInt(properties.getProperty("snapshotIndexPeriod", "10000").trim()); // milliseconds
+			scheduler.scheduleWithFixedDelay(new SnapshotIndexTask(setupManager, indexPool, listingPool, indexDir), delayIx,
+					periodIx, TimeUnit.MILLISECONDS);
+			logger.info("Scheduled snapshot index task: first run will be launched after " + delayIx + "ms and every "
+					+ periodIx + " after each run");
+
+			// record trends of selected fields of every published snapshot, optionally back-filled from the archive
+			String trendFields = properties.getProperty("trendFields");
+			if (cacheDir != null && trendFields != null && !trendFields.trim().isEmpty()) {
+				trendStore = new TrendStore(new File(cacheDir.trim(), "trends"), trendFields);
+				setupManager.addLatestSnapshotListener(trendStore);
+				event.getServletContext().setAttribute("trendStore", trendStore); // registering to global scope
+				logger.info("Recording trends of " + trendStore.getFields());
+
+				long backfillDays = Long.parseLong(properties.getProperty("trendBackfillDays", "0").trim());
+				if (backfillDays > 0) {
+					int delayTb = 60000; // milliseconds, after the time indexes have been built
+					trendBackfill = Executors.newSingleThreadScheduledExecutor();
+					trendBackfill.schedule(new TrendBackfillTask(setupManager, trendStore, backfillDays), delayTb,
+							TimeUnit.MILLISECONDS);
+					logger.info("Scheduled trend back-fill of the last " + backfillDays + " days after " + delayTb
+							+ "ms");
+				}
+			}
+
 		} catch (RuntimeException e) {
 			logger.error("Failed to execute server startup as expected");
 			e.printStackTrace();
@@ -99,6 +203,43 @@ public class ContextListener implements javax.servlet.ServletContextListener {
 		logger.info("Destroying context...");
 		scheduler.shutdownNow();
 		logger.info("Scheduler shut down");
+		if (watcher != null) {
+			watcher.shutdownNow();
+			logger.info("Watcher shut down");
+		}
+		if (configWatcher != null) {
+			configWatcher.shutdownNow();
+			logger.info("Configuration watcher shut down");
+		}
+		if (discoveryPool != null) {
+			discoveryPool.shutdownNow();
+			logger.info("Discovery pool shut down");
+		}
+		if (indexPool != null) {
+			indexPool.shutdownNow();
+			logger.info("Index pool shut down");
+		}
+		if (listingPool != null) {
+			listingPool.shutdownNow();
+			logger.info("Listing pool shut down");
+		}
+		if (trendBackfill != null) {
+			trendBackfill.shutdownNow();
+			logger.info("Trend back-fill shut down");
+		}
+		if (trendStore != null) {
+			trendStore.shutdown();
+			logger.info("Trend store shut down");
+		}
+		if (lastSnapshotStore != null) {
+			lastSnapshotStore.shutdown();
+			logger.info("Last snapshot store shut down");
+		}
+		SetupManager setupManager = (SetupManager) event.getServletContext().getAttribute("setupManager");
+		if (setupManager != null) {
+			setupManager.shutdown();
+			logger.info("Process supervision shut down");
+		}
 	}
 
 }
@@ -0,0 +1,46 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import utils.SnapshotCache;
+
+/**
+ * Reports hit/miss statistics and occupancy of the cache of encoded snapshots as json
+ */
+
+@WebServlet("/getcachestats")
+public class CacheStatisticsAPI extends HttpServlet {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 6150953744418946361L;
+
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		SnapshotCache snapshotCache = (SnapshotCache) getServletContext().getAttribute("snapshotCache");
+
+		response.addHeader("Access-Control-Allow-Origin", "*");
+		response.addHeader("Access-Control-Allow-Methods", "GET");
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+
+		Object statistics = snapshotCache != null ? snapshotCache.getStatistics()
+				: Collections.singletonMap("message", "Snapshot cache disabled");
+		response.getWriter().write(objectMapper.writeValueAsString(statistics));
+	}
+}
@@ -0,0 +1,148 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+
+import utils.DAQSetup;
+import utils.LatestSnapshot;
+import utils.LatestSnapshotListener;
+
+/**
+ * Holds long-poll requests for latest snapshots, without blocking container threads, until a snapshot newer than
+ * the one the client already has is published or their wait time expires. Either way the request is dispatched
+ * again to the servlet, which then answers it like any other latest snapshot request.
+ */
+
+public class LatestSnapshotWaiters implements LatestSnapshotListener {
+
+	/** beyond this number of waiting requests, new ones are answered right away */
+	private static final int MAX_WAITERS = 2000;
+
+	/** waiting requests by normalized setup name */
+	private final ConcurrentMap<String, Queue<Waiter>> waiters = new ConcurrentHashMap<String, Queue<Waiter>>();
+
+	private final AtomicInteger count = new AtomicInteger();
+
+	private static final Logger logger = Logger.getLogger(LatestSnapshotWaiters.class);
+
+	/**
+	 * Suspends a request until the setup publishes a snapshot newer than <code>after</code>
+	 *
+	 * @return false if the request could not be suspended and must be answered right away
+	 */
+	public boolean await(HttpServletRequest request, DAQSetup setup, String after, long waitMillis) {
+		if (count.incrementAndGet() > MAX_WAITERS) {
+			count.decrementAndGet();
+			logger.warn("Too many requests waiting for new snapshots, answering immediately");
+			return false;
+		}
+
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(waitMillis);
+
+		final Waiter waiter = new Waiter(asyncContext, after);
+		final Queue<Waiter> queue = getQueue(setup.getName());
+
+		asyncContext.addListener(new AsyncListener() {
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (queue.remove(waiter)) {
+					count.decrementAndGet();
+				}
+				waiter.resume();
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				if (queue.remove(waiter)) {
+					count.decrementAndGet();
+				}
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+
+		queue.add(waiter);
+
+		// a snapshot may have been published between the caller's check and the registration above
+		LatestSnapshot latest = setup.getLatestSnapshot();
+		if (latest != null) {
+			latestSnapshotPublished(setup, latest);
+		}
+
+		return true;
+	}
+
+	@Override
+	public void latestSnapshotPublished(DAQSetup setup, LatestSnapshot snapshot) {
+		Queue<Waiter> queue = waiters.get(setup.getName());
+
+		if (queue == null || queue.isEmpty()) {
+			return;
+		}
+
+		for (Waiter waiter : queue) {
+			if (snapshot.isNewerThan(waiter.after) && queue.remove(waiter)) {
+				count.decrementAndGet();
+				waiter.resume();
+			}
+		}
+	}
+
+	private Queue<Waiter> getQueue(String setupName) {
+		Queue<Waiter> queue = waiters.get(setupName);
+		if (queue == null) {
+			Queue<Waiter> created = new ConcurrentLinkedQueue<Waiter>();
+			queue = waiters.putIfAbsent(setupName, created);
+			if (queue == null) {
+				queue = created;
+			}
+		}
+		return queue;
+	}
+
+	private static class Waiter {
+
+		final AsyncContext asyncContext;
+
+		/** version or timestamp of the snapshot the client already has */
+		final String after;
+
+		/** publication and timeout may race, only the first one dispatches */
+		final AtomicBoolean resumed = new AtomicBoolean();
+
+		Waiter(AsyncContext asyncContext, String after) {
+			this.asyncContext = asyncContext;
+			this.after = after;
+		}
+
+		void resume() {
+			if (resumed.compareAndSet(false, true)) {
+				try {
+					asyncContext.dispatch();
+				} catch (IllegalStateException e) {
+					logger.debug("Could not resume waiting request: " + e.getMessage());
+				}
+			}
+		}
+	}
+}
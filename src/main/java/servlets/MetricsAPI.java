@@ -0,0 +1,115 @@
+package servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import utils.DAQSetup;
+import utils.LatestSnapshot;
+import utils.Metrics;
+import utils.SetupManager;
+import utils.SnapshotCache;
+
+/**
+ * Exposes counters, latency histograms and per-setup gauges in the Prometheus text format, e.g. to alert on stale
+ * snapshots. The gauges are computed at scrape time, only the counters and histograms are recorded on the hot paths.
+ */
+
+@WebServlet("/metrics")
+public class MetricsAPI extends HttpServlet {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2195541617325170093L;
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		SetupManager setupManager = (SetupManager) getServletContext().getAttribute("setupManager");
+		SnapshotCache snapshotCache = (SnapshotCache) getServletContext().getAttribute("snapshotCache");
+
+		StringBuilder sb = new StringBuilder(16384);
+
+		Metrics.write(sb);
+
+		if (snapshotCache != null) {
+			Metrics.writeCounter(sb, "daqsnapshot_cache_hits_total", "Time queries served from the snapshot cache",
+					snapshotCache.getHits());
+			Metrics.writeCounter(sb, "daqsnapshot_cache_misses_total", "Time queries not found in the snapshot cache",
+					snapshotCache.getMisses());
+		}
+
+		if (setupManager != null) {
+			writeSetupGauges(sb, setupManager.getAvailableSetups(), System.currentTimeMillis());
+		}
+
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+		response.setContentType(CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	private static void writeSetupGauges(StringBuilder sb, List<DAQSetup> setups, long now) {
+		writeGaugeHeader(sb, "daqsnapshot_latest_age_seconds",
+				"Age of the latest published snapshot, by the timestamp in its file name");
+		for (DAQSetup setup : setups) {
+			LatestSnapshot latest = setup.getLatestSnapshot();
+			if (latest != null) {
+				writeGauge(sb, "daqsnapshot_latest_age_seconds", setup, (now - latest.getTimestamp()) / 1000.0);
+			}
+		}
+
+		writeGaugeHeader(sb, "daqsnapshot_discovery_lag_seconds",
+				"Time from the last modification of the latest snapshot file to its publication");
+		for (DAQSetup setup : setups) {
+			LatestSnapshot latest = setup.getLatestSnapshot();
+			if (latest != null) {
+				writeGauge(sb, "daqsnapshot_discovery_lag_seconds", setup,
+						(latest.getDiscoveredAt() - latest.getLastModified()) / 1000.0);
+			}
+		}
+
+		writeGaugeHeader(sb, "daqsnapshot_latest_bytes", "Size of the latest snapshot as served (uncompressed json)");
+		for (DAQSetup setup : setups) {
+			LatestSnapshot latest = setup.getLatestSnapshot();
+			if (latest != null) {
+				writeGauge(sb, "daqsnapshot_latest_bytes", setup, latest.getJson().length);
+			}
+		}
+
+		writeGaugeHeader(sb, "daqsnapshot_process_running",
+				"1 if the DAQAggregator process of the setup is running, 0 otherwise");
+		for (DAQSetup setup : setups) {
+			writeGauge(sb, "daqsnapshot_process_running", setup, setup.isSetupRunning() ? 1 : 0);
+		}
+
+		writeGaugeHeader(sb, "daqsnapshot_setup_masked", "1 if the setup config file has been removed, 0 otherwise");
+		for (DAQSetup setup : setups) {
+			writeGauge(sb, "daqsnapshot_setup_masked", setup, setup.isMasked() ? 1 : 0);
+		}
+	}
+
+	private static void writeGaugeHeader(StringBuilder sb, String name, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+	}
+
+	private static void writeGauge(StringBuilder sb, String name, DAQSetup setup, double value) {
+		sb.append(name).append("{setup=\"");
+		// label values escaped as per the text format
+		sb.append(setup.getName().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+		sb.append("\"} ").append(value).append('\n');
+	}
+}
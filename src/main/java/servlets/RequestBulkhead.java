@@ -0,0 +1,248 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import utils.Metrics;
+
+/**
+ * Bounded pool serving one class of requests (e.g. latest snapshots, or time queries), so that slow requests of one
+ * class cannot take up the container threads and hold back the others. Requests are suspended (servlet async
+ * processing) and handled on the threads of their class.
+ *
+ * Requests arriving while the queue is full are answered right away with 503 and Retry-After. Requests still queued
+ * at their deadline are answered likewise, and requests still being handled are interrupted (e.g. waits for a
+ * shared decoding, or file transfers).
+ */
+
+public class RequestBulkhead {
+
+	/** Serves one request on a thread of the bulkhead */
+	public interface Handler {
+
+		void handle(HttpServletRequest request, HttpServletResponse response) throws IOException;
+	}
+
+	private static final int QUEUED = 0;
+
+	private static final int RUNNING = 1;
+
+	private static final int DONE = 2;
+
+	/** enforces the deadlines of all bulkheads */
+	private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "request-deadlines");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		watchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	private final String name;
+
+	private final ThreadPoolExecutor executor;
+
+	/** time from arrival to response, after which a request is abandoned (ms) */
+	private final long deadline;
+
+	/** sent with 503 responses (s) */
+	private final long retryAfter;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private static final Logger logger = Logger.getLogger(RequestBulkhead.class);
+
+	/**
+	 * @param threads
+	 *            requests handled at the same time
+	 * @param queue
+	 *            requests waiting for a thread, further ones are refused
+	 * @param deadline
+	 *            time from arrival to response, after which a request is abandoned (ms)
+	 */
+	public RequestBulkhead(final String name, int threads, int queue, long deadline) {
+		this.name = name;
+		this.deadline = deadline;
+		this.retryAfter = Math.max(1, deadline / 10000);
+
+		final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = threadFactory.newThread(r);
+						thread.setName(name + "-requests-" + thread.getName());
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Bulkhead configured by the properties &lt;name&gt;RequestThreads, &lt;name&gt;RequestQueue and
+	 * &lt;name&gt;RequestDeadline (ms), the given values being the defaults
+	 */
+	public static RequestBulkhead fromProperties(String name, Properties properties, int threads, int queue,
+			long deadline) {
+		if (properties != null) {
+			threads = Integer.parseInt(properties.getProperty(name + "RequestThreads", "" + threads).trim());
+			queue = Integer.parseInt(properties.getProperty(name + "RequestQueue", "" + queue).trim());
+			deadline = Long.parseLong(properties.getProperty(name + "RequestDeadline", "" + deadline).trim());
+		}
+
+		logger.info("Serving " + name + " requests on " + threads + " threads, with up to " + queue
+				+ " queued requests and a deadline of " + deadline + " ms");
+		return new RequestBulkhead(name, threads, queue, deadline);
+	}
+
+	/**
+	 * Suspends a request and hands it to a thread of the bulkhead, or answers it with 503 if the bulkhead is
+	 * saturated. Must be called on a container thread.
+	 */
+	public void submit(HttpServletRequest request, HttpServletResponse response, Handler handler) throws IOException {
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0); // deadline enforced here, the container must not answer meanwhile
+
+		final Job job = new Job(asyncContext, handler);
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			Metrics.rejectedRequests.increment();
+			logger.warn("Too many " + name + " requests, refusing request (src=" + request.getRemoteHost() + ")");
+			sendUnavailable(response, "Too many " + name + " requests, please retry later");
+			asyncContext.complete();
+			return;
+		}
+
+		job.expiry = watchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				job.expire();
+			}
+		}, deadline, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void sendUnavailable(HttpServletResponse response, String message) throws IOException {
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", Long.toString(retryAfter));
+		response.addHeader("Access-Control-Allow-Origin", "*");
+		response.addHeader("Access-Control-Expose-Headers", "Retry-After");
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(objectMapper.writeValueAsString(Collections.singletonMap("message", message)));
+	}
+
+	/** One suspended request, handled by a thread of the bulkhead or expired by the watchdog, whichever comes first */
+	private class Job implements Runnable {
+
+		private final AsyncContext asyncContext;
+
+		private final Handler handler;
+
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+		/** thread handling the request (guarded by this) */
+		private Thread runner;
+
+		volatile ScheduledFuture<?> expiry;
+
+		Job(AsyncContext asyncContext, Handler handler) {
+			this.asyncContext = asyncContext;
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (!state.compareAndSet(QUEUED, RUNNING)) {
+					return; // expired while queued, answered already
+				}
+				runner = Thread.currentThread();
+			}
+
+			HttpServletRequest request = (HttpServletRequest) asyncContext.getRequest();
+			HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+			try {
+				handler.handle(request, response);
+			} catch (IOException | RuntimeException e) {
+				if (state.get() == DONE || Thread.currentThread().isInterrupted()) {
+					logger.warn("Abandoned " + name + " request (src=" + request.getRemoteHost() + ") after "
+							+ deadline + " ms");
+					if (!response.isCommitted()) {
+						sendUnavailableQuietly(response, "Request took too long, please retry later");
+					}
+				} else {
+					logger.warn("Failed serving " + name + " request (src=" + request.getRemoteHost() + ")", e);
+				}
+			} finally {
+				synchronized (this) {
+					state.set(DONE);
+					runner = null;
+					Thread.interrupted(); // the interrupt was meant for this request only
+				}
+
+				ScheduledFuture<?> scheduled = expiry;
+				if (scheduled != null) {
+					scheduled.cancel(false);
+				}
+				asyncContext.complete();
+			}
+		}
+
+		/** Answers the request if it is still queued, or interrupts its handling */
+		void expire() {
+			synchronized (this) {
+				if (state.get() == RUNNING) {
+					Metrics.expiredRequests.increment();
+					state.set(DONE);
+					runner.interrupt();
+					return;
+				}
+			}
+
+			if (state.compareAndSet(QUEUED, DONE)) {
+				Metrics.expiredRequests.increment();
+				executor.remove(this);
+
+				HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+				logger.warn("Abandoned " + name + " request after waiting " + deadline + " ms in the queue");
+				sendUnavailableQuietly(response, "Too many " + name + " requests, please retry later");
+				asyncContext.complete();
+			}
+		}
+
+		private void sendUnavailableQuietly(HttpServletResponse response, String message) {
+			try {
+				sendUnavailable(response, message);
+			} catch (IOException | IllegalStateException e) {
+				logger.debug("Could not answer abandoned request: " + e);
+			}
+		}
+	}
+}
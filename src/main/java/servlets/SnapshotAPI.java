@@ -1,11 +1,24 @@
 package servlets;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -14,14 +27,23 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import rcms.utilities.daqaggregator.data.DAQ;
 import rcms.utilities.daqaggregator.persistence.PersistenceFormat;
 import rcms.utilities.daqaggregator.persistence.StructureSerializer;
+import tasks.GetLatestTask;
 import utils.APIPersistorManager;
 import utils.DAQSetup;
+import utils.FieldProjection;
+import utils.LatestSnapshot;
+import utils.Metrics;
 import utils.SetupManager;
+import utils.SingleFlight;
+import utils.SnapshotCache;
 
 /**
  * Request snapshots API
@@ -31,7 +53,7 @@ import utils.SetupManager;
  *
  */
 
-@WebServlet("/getsnapshot")
+@WebServlet(urlPatterns = "/getsnapshot", asyncSupported = true)
 public class SnapshotAPI extends HttpServlet {
 
 
@@ -42,29 +64,150 @@ public class SnapshotAPI extends HttpServlet {
 
 	private static final Logger logger = Logger.getLogger(SnapshotAPI.class);
 
+	/**media type of snapshots served as stored by DAQAggregator*/
+	static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
+	/**how long requests for a latest snapshot which has not been discovered yet wait for its discovery (ms)*/
+	private static final long COLD_START_WAIT = 10000;
+
+	/**upper limit for the wait parameter of long-poll requests (ms)*/
+	private static final long MAX_WAIT = 60000;
+
 	ObjectMapper objectMapper = new ObjectMapper();
 
+	private final JsonFactory jsonFactory = new JsonFactory();
+
+	private final SmileFactory smileFactory = new SmileFactory();
+
+	private LatestSnapshotWaiters waiters;
+
+	/**encoded snapshots of time queries, shared by all requests resolving to the same file (null if disabled)*/
+	private SnapshotCache snapshotCache;
+
+	/**encodings and projections in progress, by cache key, so that concurrent identical requests share one decode and
+	 * encode*/
+	private final SingleFlight<String, byte[]> encodings = new SingleFlight<String, byte[]>();
+
+	private GetLatestTask getLatestTask;
+
+	/**serves latest snapshot requests, which are cheap unless nothing has been discovered yet*/
+	private RequestBulkhead latestRequests;
+
+	/**serves time queries, which may have to list directories and decode snapshots*/
+	private RequestBulkhead timeRequests;
+
+	@Override
+	public void init() throws ServletException {
+		Properties properties = (Properties)getServletContext().getAttribute("properties");
+		latestRequests = RequestBulkhead.fromProperties("latest", properties, 16, 256, 15000);
+		timeRequests = RequestBulkhead.fromProperties("time", properties, 8, 64, 30000);
+
+		waiters = new LatestSnapshotWaiters();
+		snapshotCache = (SnapshotCache)getServletContext().getAttribute("snapshotCache");
+		getLatestTask = (GetLatestTask)getServletContext().getAttribute("getLatestTask");
+
+		SetupManager setupManager  = (SetupManager)getServletContext().getAttribute("setupManager");
+		if (setupManager != null){
+			setupManager.addLatestSnapshotListener(waiters);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		latestRequests.shutdown();
+		timeRequests.shutdown();
+	}
+
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 
-		Date tic = new Date();
+		final long tic = System.nanoTime();
+
+		//long-poll: suspend until a newer snapshot is published (not again once the wait is over)
+		if (request.getDispatcherType() != DispatcherType.ASYNC && awaitNewerSnapshot(request)){
+			return;
+		}
+
+		//time queries may list directories and decode snapshots, so they must not hold back latest snapshot requests
+		RequestBulkhead bulkhead = request.getParameter("time") != null ? timeRequests : latestRequests;
+		bulkhead.submit(request, response, new RequestBulkhead.Handler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				serve(request, response, tic);
+			}
+		});
+	}
+
+	/**Suspends a latest snapshot request with after and wait parameters if there is no newer snapshot yet
+	 * @return true if the request is suspended*/
+	private boolean awaitNewerSnapshot(HttpServletRequest request){
+		String after = request.getParameter("after"); //version or timestamp of the snapshot the client already has
+		String wait = request.getParameter("wait"); //how long to wait for a newer snapshot than 'after' (ms)
+
+		String setup = request.getParameter("setup");
+
+		//requests without setup are answered with an error right away
+		if (after == null || wait == null || setup == null || request.getParameter("time") != null){
+			return false;
+		}
+
+		SetupManager setupManager  = (SetupManager)getServletContext().getAttribute("setupManager");
+		DAQSetup daqSetup = setupManager.getSetupByName(setup);
+		if (daqSetup == null){
+			return false;
+		}
+
+		LatestSnapshot latest = daqSetup.getLatestSnapshot();
+		if (latest != null && latest.isNewerThan(after)){
+			return false;
+		}
+
+		long waitMillis;
+		try{
+			waitMillis = Math.min(Long.parseLong(wait), MAX_WAIT);
+		}catch(NumberFormatException e){
+			return false;
+		}
+
+		if (waitMillis > 0 && waiters.await(request, daqSetup, after, waitMillis)){
+			logger.debug("Request (src="+request.getRemoteHost()+") waits up to "+waitMillis+" ms for a snapshot newer than "+after);
+			return true;
+		}
+		return false;
+	}
+
+	/**Serves a snapshot request, on a thread of the bulkhead of its class*/
+	private void serve(HttpServletRequest request, HttpServletResponse response, long tic) throws IOException {
 
 		SetupManager setupManager  = (SetupManager)getServletContext().getAttribute("setupManager");
 
 		String time = request.getParameter("time");
 		String setup = request.getParameter("setup");
+		//'after' and 'wait' (long-poll) are evaluated before the request is handed over
+		//'base' (version of a snapshot the client has) requests a JSON Patch from it instead of the full snapshot
+		//'format' (PersistenceFormat name, pretty or compact) overrides the default format and Accept negotiation
+		//'fields' (JSON Pointers or dotted paths, comma-separated) selects the subtrees to send
 
 		String source = request.getRemoteHost();
 
 		logger.debug("Received snapshot request (src="+source+")");
 
-		String json = "";
+		Map<String, String> error = null;
+		LatestSnapshot latest = null;
+		File snapshotFile = null; //file to serve in another format than the pre-encoded latest snapshot
+		PersistenceFormat snapshotFormat = null;
+		byte[] encoded = null; //snapshot in the requested format from the cache, else encoded while writing
+		FieldProjection projection = null;
 		try {
-			DAQSetup daqSetup = setupManager.getSetupByName(setup);
+			PersistenceFormat format = getRequestedFormat(request);
+			projection = FieldProjection.parse(request.getParameter("fields"));
+
+			DAQSetup daqSetup = setup != null ? setupManager.getSetupByName(setup) : null;
 
 			if (daqSetup != null){
-				APIPersistorManager persistorManager = new APIPersistorManager(daqSetup.getSnapshotPath());
+				APIPersistorManager persistorManager = new APIPersistorManager(daqSetup.getSnapshotPath(),
+						daqSetup.getSnapshotIndex());
 
 				if (time != null){
 					logger.debug("Request with point time query (src="+source+")");
@@ -73,32 +216,52 @@ public class SnapshotAPI extends HttpServlet {
 					Date timeDate = objectMapper.readValue(time, Date.class);
 					logger.debug("Parsed requested snapshot date: " + timeDate);
 
-					DAQ result = persistorManager.findSnapshot(timeDate);
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-					StructureSerializer ss = new StructureSerializer();
-					ss.serialize(result, baos, PersistenceFormat.JSONREFPREFIXED); //point time queries are infrequent, so we can afford providing formatted jsons
-
-					json = baos.toString(java.nio.charset.StandardCharsets.UTF_8.toString());
+					File file = persistorManager.findSnapshotFile(timeDate);
+					if (file == null){
+						throw new RuntimeException("Could not find snapshot");
+					}
 
-					logger.debug("Found snapshot with timestamp: " + new Date(result.getLastUpdate()));
+					snapshotFile = file;
+					snapshotFormat = format != null ? format : PersistenceFormat.JSONREFPREFIXED;
 					//logger.debug("Snapshot fragment: " + json.substring(0, 1000));
 
 				}else{
 					logger.debug("Request without time (src="+source+"), - get latest available snapshot");
-					if (daqSetup.getLatestSnapshot() != null){
+					latest = daqSetup.getLatestSnapshot();
+
+					//nothing discovered yet (e.g. just after startup): discover it now rather than at the next run,
+					//concurrent requests waiting for the same discovery
+					if (latest == null && getLatestTask != null){
+						latest = getLatestTask.discoverLatest(daqSetup, COLD_START_WAIT);
+					}
 
-						json = daqSetup.getLatestSnapshot(); //json ready for consumption
+					if (latest != null){
+
+						//json encoded and compressed once at discovery, ready for consumption
 
 						logger.debug("Found latest snapshot");
 						//logger.debug("Snapshot fragment: " + json.substring(0, 1000));
 
+						//other formats are served from the stored file
+						if (format != null && format != PersistenceFormat.JSONREFPREFIXEDUGLY){
+							snapshotFile = new File(latest.getPath());
+							snapshotFormat = format;
+						}
+
 					}else{
 						logger.warn("Requested (src="+source+") to get latest snapshot, but the pointer to latest snapshot for "+daqSetup.getName()+" is null.");
 						throw new RuntimeException("Latest snapshot unknown");
 					}
 				}
 
+				//snapshot files never change once written, so an encoded file (or projection) can be served again as
+				//is; smile files are served as stored, without decoding
+				if (snapshotFile != null && projection != null){
+					encoded = getProjectedSnapshot(snapshotFile, snapshotFormat, projection);
+				}else if (snapshotFile != null && snapshotFormat != PersistenceFormat.SMILE && snapshotCache != null){
+					encoded = snapshotCache.get(SnapshotCache.key(snapshotFile.getAbsolutePath(), snapshotFormat.name()));
+				}
+
 			}else{
 				logger.warn("Request (src="+source+") without DAQ setup specified received. Client must specify a setup.");
 				throw new RuntimeException("Please specify DAQ setup");
@@ -111,24 +274,392 @@ public class SnapshotAPI extends HttpServlet {
 				reason = e.getMessage();
 			}
 			result.put("message", reason);
-			json = objectMapper.writeValueAsString(result);
+			error = result;
 		}
 
 		response.addHeader("Access-Control-Allow-Origin", "*");
 		response.addHeader("Access-Control-Allow-Methods", "GET");
 		response.addHeader("Access-Control-Allow-Headers",
-				"X-PINGOTHER, Origin, X-Requested-With, Content-Type, Accept");
+				"X-PINGOTHER, Origin, X-Requested-With, Content-Type, Accept, If-None-Match, If-Modified-Since");
 		response.addHeader("Access-Control-Expose-Headers",
-				"Date");
+				"Date, ETag, Last-Modified, Warning, X-Snapshot-Version, X-Snapshot-Stale");
 		response.addHeader("Access-Control-Max-Age", "1728000");
 
-		response.setContentType("application/json");
-		response.setCharacterEncoding("UTF-8");
-		response.getWriter().write(json);
+		if (error == null && snapshotFormat == PersistenceFormat.SMILE){
+			response.setContentType(SMILE_CONTENT_TYPE);
+		}else{
+			response.setContentType("application/json");
+			response.setCharacterEncoding("UTF-8");
+		}
+
+		if (error != null){
+			objectMapper.writeValue(response.getOutputStream(), error);
+		}else{
+			//the representation depends on the Accept header, unless a format is given
+			response.addHeader("Vary", "Accept");
+
+			if (snapshotFile == null){
+				writeLatestSnapshot(request, response, latest, projection);
+			}else if (latest == null || !writeValidators(request, response, latest, snapshotFormat, projection)){
+				if (snapshotFormat == PersistenceFormat.SMILE && encoded == null){
+					writeStoredSnapshot(response, snapshotFile);
+				}else if (!writeEncodedSnapshot(request, response, encoded, snapshotFile, snapshotFormat)){
+					error = Collections.singletonMap("message", "Could not find snapshot");
+					objectMapper.writeValue(response.getOutputStream(), error);
+				}
+			}
+		}
+
+		if (error != null){
+			Metrics.failedRequests.recordSince(tic);
+		}else if (time != null){
+			Metrics.timeRequests.recordSince(tic);
+		}else{
+			Metrics.latestRequests.recordSince(tic);
+		}
+		logger.debug("Serving snapshot API request took "+(System.nanoTime()-tic)/1000000+" milliseconds");
+
+	}
+
+	/**Writes the pre-encoded bytes of a latest snapshot, compressed if the client accepts it, as a patch if the client
+	 * has a recent previous snapshot, or only a 304 status if the client already has this snapshot*/
+	private void writeLatestSnapshot(HttpServletRequest request, HttpServletResponse response, LatestSnapshot latest,
+			FieldProjection projection) throws IOException {
+		boolean gzip = acceptsGzip(request);
+
+		//projections are computed once per snapshot and selection, patches always apply to the full snapshot
+		byte[] projected = projection != null ? latest.getProjection(projection) : null;
+
+		byte[] patch = null;
+		String base = request.getParameter("base");
+		if (base != null && projected == null){
+			patch = latest.getPatchSince(base.replace("\"", "").replace("-gzip", ""));
+
+			//base unknown or too old, or so many changes that the full snapshot is cheaper
+			if (patch != null && patch.length >= latest.getJson().length){
+				patch = null;
+			}
+		}
+
+		response.addHeader("Vary", "Accept-Encoding");
+		response.setHeader("X-Snapshot-Version", latest.getVersion());
+		if (latest.isRestored()){
+			//served from the previous run of the service until discovery has caught up
+			response.setHeader("Warning", "110 - \"Response is Stale\"");
+			response.setHeader("X-Snapshot-Stale", "true");
+		}
+		response.setDateHeader("Last-Modified", latest.getTimestamp());
+		//each encoding is a different representation, so it gets its own strong entity tag
+		String etag = "\""+latest.getVersion()+(projected != null ? "-"+projection.getTag() : "")
+				+(gzip ? "-gzip" : "")+"\"";
+		if (patch == null){
+			response.setHeader("ETag", etag);
+		}
+
+		if (isNotModified(request, latest, etag)){
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		byte[] body;
+		if (patch != null){
+			response.setContentType("application/json-patch+json");
+			body = patch;
+		}else if (projected != null && gzip){
+			response.setHeader("Content-Encoding", "gzip");
+			OutputStream out = new GZIPOutputStream(response.getOutputStream(), 8192);
+			out.write(projected);
+			out.close();
+			return;
+		}else if (projected != null){
+			body = projected;
+		}else if (gzip){
+			response.setHeader("Content-Encoding", "gzip");
+			body = latest.getGzippedJson();
+		}else{
+			body = latest.getJson();
+		}
+
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	/**Encodes the selected fields of a snapshot, and the objects they refer to: smile projections are read from the
+	 * stored file, json ones from the (cached) encoded snapshot*/
+	private byte[] projectSnapshot(File file, PersistenceFormat format, FieldProjection projection) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+
+		try{
+			if (format == PersistenceFormat.SMILE){
+				projection.project(Files.readAllBytes(file.toPath()), smileFactory, smileFactory.createGenerator(baos));
+				return baos.toByteArray();
+			}
+
+			byte[] full = getEncodedSnapshot(file, format);
+
+			JsonGenerator generator = jsonFactory.createGenerator(baos);
+			if (format == PersistenceFormat.JSONREFPREFIXED){
+				generator.useDefaultPrettyPrinter(); //keep formatted jsons formatted
+			}
+			projection.project(full, jsonFactory, generator);
+			return baos.toByteArray();
+
+		}catch(IOException e){
+			logger.error("Could not project snapshot "+file, e);
+			throw new RuntimeException("Could not find snapshot");
+		}
+	}
+
+	/**@throws RuntimeException if the snapshot cannot be read*/
+	private static DAQ decodeSnapshot(File file){
+		long tic = System.nanoTime();
+		DAQ decoded = new StructureSerializer().deserialize(file.getAbsolutePath());
+		Metrics.decode.recordSince(tic);
+		if (decoded == null){
+			throw new RuntimeException("Could not find snapshot");
+		}
+		return decoded;
+	}
+
+	/**Sets the validators of a latest snapshot served in another format, and a 304 status if the client already has it
+	 * @return true if the client already has the snapshot*/
+	private boolean writeValidators(HttpServletRequest request, HttpServletResponse response, LatestSnapshot latest,
+			PersistenceFormat format, FieldProjection projection){
+		response.setHeader("X-Snapshot-Version", latest.getVersion());
+		response.setDateHeader("Last-Modified", latest.getTimestamp());
+		String etag = "\""+latest.getVersion()+"-"+format.name().toLowerCase()
+				+(projection != null ? "-"+projection.getTag() : "")+"\"";
+		response.setHeader("ETag", etag);
+
+		if (isNotModified(request, latest, etag)){
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+
+	/**Writes a snapshot encoded in a given format, compressed if the client accepts it. Concurrent requests of the
+	 * same file and format share one decode and encode, each of them writing the encoded bytes to its own client.
+	 * @return false if the snapshot could not be read (nothing is written then)*/
+	private boolean writeEncodedSnapshot(HttpServletRequest request, HttpServletResponse response, byte[] encoded,
+			final File file, final PersistenceFormat format) throws IOException {
+		boolean gzip = acceptsGzip(request);
+
+		response.addHeader("Vary", "Accept-Encoding");
+
+		if (encoded == null){
+			try{
+				encoded = encodings.execute(SnapshotCache.key(file.getAbsolutePath(), format.name()),
+						new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return getEncodedSnapshot(file, format);
+					}
+				});
+			}catch(RuntimeException e){
+				logger.warn("Could not read snapshot "+file+": "+e.getMessage());
+				return false;
+			}
+		}
+
+		OutputStream out = response.getOutputStream();
+		if (gzip){
+			response.setHeader("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out, 8192);
+		}else{
+			response.setContentLength(encoded.length);
+		}
+		out.write(encoded);
+		out.close();
+		return true;
+	}
+
+	/**Encoded snapshot in a given format, from the cache or else encoded (and cached if small enough)
+	 * @throws RuntimeException if the snapshot cannot be read*/
+	private byte[] getEncodedSnapshot(File file, PersistenceFormat format) throws IOException {
+		String cacheKey = SnapshotCache.key(file.getAbsolutePath(), format.name());
+
+		byte[] encoded = snapshotCache != null ? snapshotCache.get(cacheKey) : null;
+		if (encoded != null){
+			logger.debug("Found snapshot " + file.getName() + " in cache");
+			return encoded;
+		}
+
+		DAQ decoded = decodeSnapshot(file);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(65536);
+		long tic = System.nanoTime();
+		new StructureSerializer().serialize(decoded, baos, format);
+		Metrics.encode.recordSince(tic);
+
+		encoded = baos.toByteArray();
+		if (snapshotCache != null){
+			snapshotCache.put(cacheKey, encoded);
+		}
+		return encoded;
+	}
+
+	/**Projection of a snapshot in a given format, from the cache or else computed once for all concurrent requests of
+	 * the same file, format and projection (and cached)*/
+	private byte[] getProjectedSnapshot(final File file, final PersistenceFormat format,
+			final FieldProjection projection) throws IOException {
+		final String cacheKey = SnapshotCache.key(file.getAbsolutePath(), format.name()+"|"+projection.getKey());
+
+		byte[] projected = snapshotCache != null ? snapshotCache.get(cacheKey) : null;
+		if (projected != null){
+			return projected;
+		}
+
+		return encodings.execute(cacheKey, new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				byte[] bytes = projectSnapshot(file, format, projection);
+				if (snapshotCache != null){
+					snapshotCache.put(cacheKey, bytes);
+				}
+				return bytes;
+			}
+		});
+	}
+
+	/**Writes the bytes of a stored (smile) snapshot file as they are, transferred by the file channel, without
+	 * decoding them*/
+	private void writeStoredSnapshot(HttpServletResponse response, File file) throws IOException {
+		FileChannel channel;
+		try{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}catch(IOException e){
+			logger.warn("Could not open snapshot file "+file+": "+e);
+			response.setContentType("application/json");
+			response.setCharacterEncoding("UTF-8");
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			objectMapper.writeValue(response.getOutputStream(), Collections.singletonMap("message", "Could not find snapshot"));
+			return;
+		}
+
+		try{
+			long size = channel.size();
+			response.setContentLengthLong(size);
+
+			WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+			long position = 0;
+			while (position < size){
+				position += channel.transferTo(position, size - position, target);
+			}
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**Evaluates the after and base parameters, If-None-Match, or If-Modified-Since in its absence, against a latest snapshot
+	 * (RFC 7232)
+	 * @param etag entity tag of the representation served*/
+	static boolean isNotModified(HttpServletRequest request, LatestSnapshot latest, String etag){
+		String after = request.getParameter("after");
+		if (after != null && !latest.isNewerThan(after)){
+			return true;
+		}
+
+		String base = request.getParameter("base");
+		if (base != null && !latest.isNewerThan(base)){
+			return true;
+		}
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+
+		if (ifNoneMatch != null){
+			String representation = getRepresentationTag(etag);
+			for (String tag : ifNoneMatch.split(",")){
+				tag = tag.trim();
+				if (tag.equals("*")){
+					return true;
+				}
+				//weak comparison, only across the content codings of the same representation (format and fields)
+				if (getRepresentationTag(tag).equals(representation)){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		long ifModifiedSince;
+		try{
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		}catch(IllegalArgumentException e){
+			return false; //unparsable dates are ignored
+		}
+
+		//http dates have a resolution of one second
+		return ifModifiedSince != -1 && latest.getTimestamp() / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**@return entity tag without weakness indicator, quotes and content coding suffix*/
+	private static String getRepresentationTag(String etag){
+		String tag = etag.startsWith("W/") ? etag.substring(2) : etag;
+		tag = tag.replace("\"", "");
+		return tag.endsWith("-gzip") ? tag.substring(0, tag.length() - "-gzip".length()) : tag;
+	}
+
+	/**True if the Accept-Encoding headers of a request list gzip with a non-zero quality*/
+	static boolean acceptsGzip(HttpServletRequest request){
+		return getQuality(request.getHeaders("Accept-Encoding"), "gzip", "x-gzip") > 0;
+	}
+
+	/**True if the Accept headers of a request list smile with a non-zero quality*/
+	static boolean acceptsSmile(HttpServletRequest request){
+		return getQuality(request.getHeaders("Accept"), SMILE_CONTENT_TYPE) > 0;
+	}
 
-		Date toc = new Date();
-		logger.debug("Serving snapshot API request took "+(toc.getTime()-tic.getTime())+" milliseconds");
+	/**@return quality of the first of the given names listed in Accept(-Encoding) style headers, 0 if not listed*/
+	private static double getQuality(Enumeration<String> headers, String... names){
+		while (headers != null && headers.hasMoreElements()){
+			for (String item : headers.nextElement().split(",")){
+				String[] params = item.split(";");
+				String name = params[0].trim().toLowerCase();
+
+				for (String candidate : names){
+					if (name.equals(candidate)){
+						for (int i = 1; i < params.length; i++){
+							String param = params[i].trim();
+							if (param.startsWith("q=")){
+								try{
+									return Double.parseDouble(param.substring(2));
+								}catch(NumberFormatException e){
+									return 0;
+								}
+							}
+						}
+						return 1;
+					}
+				}
+			}
+		}
 
+		return 0;
+	}
+
+	/**Format requested with the format parameter (a PersistenceFormat name, "pretty" or "compact"), or smile if the
+	 * client accepts it, or null for the default format of the query
+	 * @throws RuntimeException for unknown formats*/
+	static PersistenceFormat getRequestedFormat(HttpServletRequest request){
+		String format = request.getParameter("format");
+
+		if (format == null){
+			return acceptsSmile(request) ? PersistenceFormat.SMILE : null;
+		}
+
+		format = format.trim();
+		if (format.equalsIgnoreCase("pretty")){
+			return PersistenceFormat.JSONREFPREFIXED;
+		}
+		if (format.equalsIgnoreCase("compact")){
+			return PersistenceFormat.JSONREFPREFIXEDUGLY;
+		}
+
+		try{
+			return PersistenceFormat.valueOf(format.toUpperCase());
+		}catch(IllegalArgumentException e){
+			throw new RuntimeException("Unknown format: "+format);
+		}
 	}
 
 	@Override
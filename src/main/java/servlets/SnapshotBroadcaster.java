@@ -0,0 +1,226 @@
+package servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.apache.log4j.Logger;
+
+import utils.DAQSetup;
+import utils.LatestSnapshot;
+import utils.LatestSnapshotListener;
+
+/**
+ * Fans out every published latest snapshot to the subscribers of its setup as a server-sent event. The event is
+ * encoded once per snapshot and shared by all subscribers.
+ *
+ * Subscribers are written to with non-blocking I/O. Each one keeps at most one pending event per setup: when a
+ * client is too slow, intermediate snapshots are dropped and it only receives the newest one.
+ */
+
+public class SnapshotBroadcaster implements LatestSnapshotListener {
+
+	/** key of heartbeat comments in the pending events of a subscriber */
+	private static final String HEARTBEAT = "";
+
+	private static final byte[] HEARTBEAT_EVENT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	/** subscribers by normalized setup name */
+	private final ConcurrentMap<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<String, Set<Subscriber>>();
+
+	/** all subscribers, for heartbeats and shutdown */
+	private final Set<Subscriber> all = new CopyOnWriteArraySet<Subscriber>();
+
+	private static final Logger logger = Logger.getLogger(SnapshotBroadcaster.class);
+
+	/** Encodes a snapshot as a server-sent event named after its setup and identified by the snapshot version */
+	public static byte[] encodeEvent(String setupName, LatestSnapshot snapshot) {
+		byte[] header = ("event: " + setupName + "\nid: " + snapshot.getVersion() + "\ndata: ")
+				.getBytes(StandardCharsets.UTF_8);
+		byte[] json = snapshot.getJson(); // compact json, therefore a single line
+		byte[] event = new byte[header.length + json.length + 2];
+
+		System.arraycopy(header, 0, event, 0, header.length);
+		System.arraycopy(json, 0, event, header.length, json.length);
+		event[event.length - 2] = '\n';
+		event[event.length - 1] = '\n';
+
+		return event;
+	}
+
+	public int getSubscriberCount() {
+		return all.size();
+	}
+
+	/**
+	 * Starts streaming to an async request, beginning with the current latest snapshot of each setup
+	 */
+	public void subscribe(AsyncContext asyncContext, Iterable<DAQSetup> setups) throws IOException {
+		Subscriber subscriber = new Subscriber(asyncContext);
+
+		all.add(subscriber);
+		for (DAQSetup setup : setups) {
+			subscriber.setupNames.add(setup.getName());
+			getSubscribers(setup.getName()).add(subscriber);
+
+			LatestSnapshot latest = setup.getLatestSnapshot();
+			if (latest != null) {
+				subscriber.offer(setup.getName(), encodeEvent(setup.getName(), latest));
+			}
+		}
+
+		// from now on, the container calls back whenever the client can accept more data
+		asyncContext.getResponse().getOutputStream().setWriteListener(subscriber);
+	}
+
+	public void unsubscribe(AsyncContext asyncContext) {
+		for (Subscriber subscriber : all) {
+			if (subscriber.asyncContext == asyncContext) {
+				remove(subscriber);
+			}
+		}
+	}
+
+	@Override
+	public void latestSnapshotPublished(DAQSetup setup, LatestSnapshot snapshot) {
+		Set<Subscriber> setupSubscribers = subscribers.get(setup.getName());
+
+		if (setupSubscribers == null || setupSubscribers.isEmpty()) {
+			return;
+		}
+
+		byte[] event = encodeEvent(setup.getName(), snapshot);
+
+		for (Subscriber subscriber : setupSubscribers) {
+			subscriber.offer(setup.getName(), event);
+		}
+	}
+
+	/** Sends a comment line to all subscribers, which keeps idle connections open and reveals dead ones */
+	public void heartbeat() {
+		for (Subscriber subscriber : all) {
+			subscriber.offer(HEARTBEAT, HEARTBEAT_EVENT);
+		}
+	}
+
+	/** Ends all streams */
+	public void close() {
+		for (Subscriber subscriber : all) {
+			remove(subscriber);
+			try {
+				subscriber.asyncContext.complete();
+			} catch (IllegalStateException e) {
+				// already completed
+			}
+		}
+	}
+
+	private void remove(Subscriber subscriber) {
+		all.remove(subscriber);
+		for (String setupName : subscriber.setupNames) {
+			Set<Subscriber> setupSubscribers = subscribers.get(setupName);
+			if (setupSubscribers != null) {
+				setupSubscribers.remove(subscriber);
+			}
+		}
+	}
+
+	private Set<Subscriber> getSubscribers(String setupName) {
+		Set<Subscriber> setupSubscribers = subscribers.get(setupName);
+		if (setupSubscribers == null) {
+			Set<Subscriber> created = new CopyOnWriteArraySet<Subscriber>();
+			setupSubscribers = subscribers.putIfAbsent(setupName, created);
+			if (setupSubscribers == null) {
+				setupSubscribers = created;
+			}
+		}
+		return setupSubscribers;
+	}
+
+	/** One streaming client, with its pending events */
+	private class Subscriber implements WriteListener {
+
+		final AsyncContext asyncContext;
+
+		final Set<String> setupNames = new CopyOnWriteArraySet<String>();
+
+		/** newest unsent event per setup, in order of arrival (guarded by this) */
+		private final LinkedHashMap<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+
+		/** set once the container has accepted the write listener (guarded by this) */
+		private ServletOutputStream out;
+
+		private boolean flushNeeded;
+
+		private long dropped;
+
+		Subscriber(AsyncContext asyncContext) {
+			this.asyncContext = asyncContext;
+		}
+
+		synchronized void offer(String key, byte[] event) {
+			if (pending.remove(key) != null) {
+				dropped++;
+				if (dropped % 100 == 1) {
+					logger.debug("Slow snapshot stream client, dropped " + dropped + " events so far");
+				}
+			}
+			pending.put(key, event);
+
+			if (out != null) {
+				try {
+					write();
+				} catch (IOException | IllegalStateException e) {
+					onError(e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void onWritePossible() throws IOException {
+			if (out == null) {
+				out = asyncContext.getResponse().getOutputStream();
+			}
+			write();
+		}
+
+		/** Writes pending events for as long as the container accepts data without blocking */
+		private void write() throws IOException {
+			while (out.isReady()) {
+				Iterator<byte[]> it = pending.values().iterator();
+
+				if (it.hasNext()) {
+					byte[] event = it.next();
+					it.remove();
+					out.write(event);
+					flushNeeded = true;
+				} else if (flushNeeded) {
+					flushNeeded = false;
+					out.flush();
+				} else {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			logger.debug("Snapshot stream closed: " + t);
+			remove(this);
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException e) {
+				// already completed
+			}
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import rcms.utilities.daqaggregator.data.DAQ;
+import rcms.utilities.daqaggregator.persistence.PersistenceFormat;
+import rcms.utilities.daqaggregator.persistence.StructureSerializer;
+import utils.DAQSetup;
+import utils.Metrics;
+import utils.SetupManager;
+import utils.SnapshotCache;
+import utils.SnapshotIndex;
+
+/**
+ * Streams the snapshots of a setup in a time range as newline-delimited json (one compact snapshot per line, in
+ * timestamp order), e.g. /getsnapshots?setup=cdaq&from=1508320800000&to=1508324400000&step=10000
+ *
+ * Without step, all snapshots in the range are sent. With step, only the snapshot nearest to each step is sent and
+ * skipped files are never decoded. Snapshots are decoded in parallel on a bounded pool, but only a few ahead of the
+ * one being written, so a slow client holds back decoding instead of filling up memory.
+ */
+
+@WebServlet(urlPatterns = "/getsnapshots", asyncSupported = true)
+public class SnapshotRangeAPI extends HttpServlet {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 4968112870145035718L;
+
+	private static final Logger logger = Logger.getLogger(SnapshotRangeAPI.class);
+
+	/** requests selecting more snapshots than this are refused, a larger step must be used */
+	private static final int MAX_SNAPSHOTS = 10000;
+
+	private static final byte[] NEWLINE = { '\n' };
+
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	/** decodes snapshots of all range requests */
+	private ExecutorService decodePool;
+
+	/** number of snapshots decoded ahead of the one being written, per request */
+	private int window;
+
+	/** serves range requests, apart from single snapshot requests */
+	private RequestBulkhead rangeRequests;
+
+	/** encoded snapshots shared with time queries (null if disabled) */
+	private SnapshotCache snapshotCache;
+
+	@Override
+	public void init() throws ServletException {
+		Properties properties = (Properties) getServletContext().getAttribute("properties");
+
+		int threads = 4;
+		if (properties != null) {
+			threads = Integer.parseInt(properties.getProperty("rangeDecodeThreads", "4").trim());
+		}
+
+		decodePool = Executors.newFixedThreadPool(threads);
+		window = 2 * threads;
+		rangeRequests = RequestBulkhead.fromProperties("range", properties, 4, 16, 600000);
+		snapshotCache = (SnapshotCache) getServletContext().getAttribute("snapshotCache");
+	}
+
+	@Override
+	public void destroy() {
+		rangeRequests.shutdown();
+		decodePool.shutdownNow();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		final long tic = System.nanoTime();
+
+		rangeRequests.submit(request, response, new RequestBulkhead.Handler() {
+			@Override
+			public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				serve(request, response, tic);
+			}
+		});
+	}
+
+	/** Streams the snapshots of a range, on a thread of the range bulkhead */
+	private void serve(HttpServletRequest request, HttpServletResponse response, long tic) throws IOException {
+
+		SetupManager setupManager = (SetupManager) getServletContext().getAttribute("setupManager");
+
+		String setup = request.getParameter("setup");
+		String from = request.getParameter("from");
+		String to = request.getParameter("to");
+		String step = request.getParameter("step"); // ms
+
+		String source = request.getRemoteHost();
+
+		response.addHeader("Access-Control-Allow-Origin", "*");
+		response.addHeader("Access-Control-Allow-Methods", "GET");
+		response.addHeader("Access-Control-Expose-Headers", "X-Snapshot-Count");
+
+		if (setup == null || from == null || to == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Please specify DAQ setup, from and to");
+			return;
+		}
+
+		DAQSetup daqSetup = setupManager.getSetupByName(setup);
+		if (daqSetup == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown DAQ setup: " + setup);
+			return;
+		}
+
+		SnapshotIndex index = daqSetup.getSnapshotIndex();
+		if (index == null) {
+			response.setHeader("Retry-After", "10");
+			sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Snapshot index of " + setup
+					+ " not built yet");
+			return;
+		}
+
+		long[] selected;
+		try {
+			long fromTime = objectMapper.readValue(from, Date.class).getTime();
+			long toTime = objectMapper.readValue(to, Date.class).getTime();
+			long stepTime = step != null ? Long.parseLong(step) : 0;
+
+			// refused before anything is copied
+			if (stepTime > 0) {
+				selected = index.sample(fromTime, toTime, stepTime, MAX_SNAPSHOTS);
+			} else {
+				int count = index.count(fromTime, toTime);
+				selected = count <= MAX_SNAPSHOTS ? index.getRange(fromTime, toTime) : null;
+			}
+		} catch (IOException | NumberFormatException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid from, to or step");
+			return;
+		}
+
+		if (selected == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Range contains more than " + MAX_SNAPSHOTS
+					+ " snapshots, please specify a larger step");
+			return;
+		}
+
+		logger.debug("Streaming " + selected.length + " snapshots of " + setup + " (src=" + source + ")");
+
+		response.setContentType("application/x-ndjson");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("X-Snapshot-Count", Integer.toString(selected.length));
+
+		ServletOutputStream out = response.getOutputStream();
+		Deque<Future<byte[]>> decoding = new ArrayDeque<Future<byte[]>>();
+		int next = 0;
+		int sent = 0;
+
+		try {
+			while (next < selected.length || !decoding.isEmpty()) {
+				while (next < selected.length && decoding.size() < window) {
+					decoding.add(decodePool.submit(new Decoder(index.getFile(selected[next++]))));
+				}
+
+				// in timestamp order, whatever order the decoders finish in
+				byte[] json = decoding.poll().get();
+				if (json != null) {
+					out.write(json);
+					out.write(NEWLINE);
+					sent++;
+				}
+
+				// let the client process what is ready while the next ones are decoded
+				if (decoding.isEmpty() || !decoding.peek().isDone()) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("Client (src=" + source + ") went away after " + sent + " snapshots");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.error("Failed to decode snapshot of " + setup, e.getCause());
+		} finally {
+			for (Future<byte[]> future : decoding) {
+				future.cancel(true);
+			}
+		}
+
+		Metrics.rangeRequests.recordSince(tic);
+		logger.debug("Serving " + sent + " snapshots took " + (System.nanoTime() - tic) / 1000000 + " milliseconds");
+	}
+
+	/**
+	 * Decodes one snapshot file into compact json, or null if it cannot be read. The cache is only looked at, as a
+	 * replay of many snapshots would otherwise flush the snapshots requested repeatedly by time queries.
+	 */
+	private class Decoder implements Callable<byte[]> {
+
+		private final File file;
+
+		Decoder(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			String cacheKey = SnapshotCache.key(file.getAbsolutePath(), PersistenceFormat.JSONREFPREFIXEDUGLY.name());
+
+			byte[] json = snapshotCache != null ? snapshotCache.peek(cacheKey) : null;
+			if (json != null) {
+				return json;
+			}
+
+			long tic = System.nanoTime();
+			DAQ result = new StructureSerializer().deserialize(file.getAbsolutePath());
+			Metrics.decode.recordSince(tic);
+			if (result == null) {
+				logger.warn("Could not deserialize snapshot " + file + ", skipping it");
+				return null;
+			}
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			tic = System.nanoTime();
+			new StructureSerializer().serialize(result, baos, PersistenceFormat.JSONREFPREFIXEDUGLY);
+			Metrics.encode.recordSince(tic);
+			return baos.toByteArray();
+		}
+	}
+
+	private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(objectMapper.writeValueAsString(Collections.singletonMap("message", message)));
+	}
+}
@@ -0,0 +1,161 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import utils.DAQSetup;
+import utils.SetupManager;
+
+/**
+ * Streams latest snapshots as server-sent events (text/event-stream). Clients subscribe once to one or more setups
+ * with e.g. /streamsnapshots?setup=cdaq,daqval and then receive an event named after the setup, with the snapshot
+ * version as event id, every time a new snapshot is published.
+ */
+
+@WebServlet(urlPatterns = "/streamsnapshots", asyncSupported = true)
+public class SnapshotStreamAPI extends HttpServlet {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2381946105374563207L;
+
+	private static final Logger logger = Logger.getLogger(SnapshotStreamAPI.class);
+
+	/** streams beyond this number are refused */
+	private static final int MAX_SUBSCRIBERS = 500;
+
+	/** interval between heartbeat comments on every stream (s) */
+	private static final int HEARTBEAT_PERIOD = 15;
+
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	private SnapshotBroadcaster broadcaster;
+
+	private ScheduledExecutorService heartbeats;
+
+	@Override
+	public void init() throws ServletException {
+		broadcaster = new SnapshotBroadcaster();
+
+		SetupManager setupManager = (SetupManager) getServletContext().getAttribute("setupManager");
+		if (setupManager != null) {
+			setupManager.addLatestSnapshotListener(broadcaster);
+		}
+
+		heartbeats = Executors.newSingleThreadScheduledExecutor();
+		heartbeats.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				broadcaster.heartbeat();
+			}
+		}, HEARTBEAT_PERIOD, HEARTBEAT_PERIOD, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		heartbeats.shutdownNow();
+		broadcaster.close();
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		SetupManager setupManager = (SetupManager) getServletContext().getAttribute("setupManager");
+
+		String source = request.getRemoteHost();
+
+		response.addHeader("Access-Control-Allow-Origin", "*");
+		response.addHeader("Access-Control-Allow-Methods", "GET");
+
+		// setups can be given as a comma-separated list and/or as repeated parameters
+		List<DAQSetup> setups = new ArrayList<DAQSetup>();
+		String[] setupParams = request.getParameterValues("setup");
+		if (setupParams != null) {
+			for (String param : setupParams) {
+				for (String name : param.split(",")) {
+					DAQSetup daqSetup = setupManager.getSetupByName(name);
+					if (daqSetup == null) {
+						sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown DAQ setup: " + name);
+						return;
+					}
+					setups.add(daqSetup);
+				}
+			}
+		}
+
+		if (setups.isEmpty()) {
+			logger.warn("Stream request (src=" + source + ") without DAQ setup specified received.");
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Please specify DAQ setup");
+			return;
+		}
+
+		if (broadcaster.getSubscriberCount() >= MAX_SUBSCRIBERS) {
+			logger.warn("Refusing stream request (src=" + source + "), too many open streams");
+			response.setHeader("Retry-After", "10");
+			sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many open streams");
+			return;
+		}
+
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0); // streams stay open until the client goes away
+
+		asyncContext.addListener(new AsyncListener() {
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				broadcaster.unsubscribe(event.getAsyncContext());
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				broadcaster.unsubscribe(event.getAsyncContext());
+				event.getAsyncContext().complete();
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				broadcaster.unsubscribe(event.getAsyncContext());
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+
+		broadcaster.subscribe(asyncContext, setups);
+
+		logger.info("Streaming snapshots of " + setups.size() + " setups to " + source + " ("
+				+ broadcaster.getSubscriberCount() + " streams open)");
+	}
+
+	private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(objectMapper.writeValueAsString(Collections.singletonMap("message", message)));
+	}
+}
@@ -0,0 +1,135 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import utils.Metrics;
+import utils.SetupManager;
+import utils.TrendStore;
+
+/**
+ * Serves downsampled trends of recorded snapshot fields, e.g.
+ * /gettrend?setup=cdaq&from=1508320800000&to=1508342400000&fields=fedBuilderSummary.rate&points=500
+ *
+ * The range is split into (at most) the given number of intervals, and the minimum, maximum and average of each
+ * field in each interval is returned, as parallel arrays per field. Without fields, all recorded fields are returned.
+ */
+
+@WebServlet("/gettrend")
+public class TrendAPI extends HttpServlet {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 7120386015844931572L;
+
+	private static final Logger logger = Logger.getLogger(TrendAPI.class);
+
+	private static final int DEFAULT_POINTS = 500;
+
+	private static final int MAX_POINTS = 10000;
+
+	/** requests for longer ranges are refused (ms) */
+	private static final long MAX_RANGE = 366L * 86400000;
+
+	ObjectMapper objectMapper = new ObjectMapper();
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		long tic = System.nanoTime();
+
+		SetupManager setupManager = (SetupManager) getServletContext().getAttribute("setupManager");
+		TrendStore trendStore = (TrendStore) getServletContext().getAttribute("trendStore");
+
+		String setup = request.getParameter("setup");
+		String from = request.getParameter("from");
+		String to = request.getParameter("to");
+		String fields = request.getParameter("fields");
+		String points = request.getParameter("points");
+
+		response.addHeader("Access-Control-Allow-Origin", "*");
+		response.addHeader("Access-Control-Allow-Methods", "GET");
+
+		if (trendStore == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Trends are not recorded by this service");
+			return;
+		}
+
+		if (setup == null || from == null || to == null) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Please specify DAQ setup, from and to");
+			return;
+		}
+
+		if (setupManager.getSetupByName(setup) == null) {
+			sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown DAQ setup: " + setup);
+			return;
+		}
+
+		long fromTime;
+		long toTime;
+		int pointCount;
+		try {
+			fromTime = objectMapper.readValue(from, Date.class).getTime();
+			toTime = objectMapper.readValue(to, Date.class).getTime();
+			pointCount = points != null ? Integer.parseInt(points) : DEFAULT_POINTS;
+		} catch (IOException | NumberFormatException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid from, to or points");
+			return;
+		}
+
+		if (toTime < fromTime || toTime - fromTime > MAX_RANGE || pointCount < 1 || pointCount > MAX_POINTS) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Range must be at most " + MAX_RANGE / 86400000
+					+ " days, with 1 to " + MAX_POINTS + " points");
+			return;
+		}
+
+		List<String> queryFields;
+		try {
+			queryFields = fields != null ? TrendStore.getNames(fields) : trendStore.getFields();
+		} catch (RuntimeException e) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		if (queryFields.isEmpty() || !trendStore.getFields().containsAll(queryFields)) {
+			sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Recorded fields are " + trendStore.getFields());
+			return;
+		}
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("setup", setup);
+		result.put("from", fromTime);
+		result.put("to", toTime);
+		result.put("fields", trendStore.query(setup, queryFields, fromTime, toTime, pointCount));
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		objectMapper.writeValue(response.getOutputStream(), result);
+
+		Metrics.trendRequests.recordSince(tic);
+		logger.debug("Serving trend of " + queryFields.size() + " fields of " + setup + " took "
+				+ (System.nanoTime() - tic) / 1000000 + " milliseconds");
+	}
+
+	private void sendError(HttpServletResponse response, int status, String message) throws IOException {
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(objectMapper.writeValueAsString(Collections.singletonMap("message", message)));
+	}
+}
@@ -0,0 +1,87 @@
+package tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import utils.SetupManager;
+
+/**
+ * Runs setup detection as soon as the DAQAggregator config directory or the pid log changes, so that new setups and
+ * restarted aggregators appear without waiting for the next {@link SetupDetectionTask} run. Notifications are not
+ * reliable on every filesystem (e.g. changes made by other NFS clients), so the periodic detection is kept as
+ * fallback.
+ *
+ * This task runs until interrupted and must therefore be given its own thread.
+ */
+
+public class ConfigWatchTask implements Runnable {
+
+	SetupManager setupManager;
+
+	/** changes are collected for this long before detection runs, as editors and scripts write in several steps (ms) */
+	private static final long SETTLE_TIME = 200;
+
+	private final File configDir;
+
+	private final File pidLog;
+
+	private static final Logger logger = Logger.getLogger(ConfigWatchTask.class);
+
+	public ConfigWatchTask(SetupManager setupManager, String configDirPath, String pidLogPath) {
+		this.setupManager = setupManager;
+		this.configDir = new File(configDirPath);
+		this.pidLog = new File(pidLogPath).getAbsoluteFile();
+	}
+
+	@Override
+	public void run() {
+		try (WatchService ws = FileSystems.getDefault().newWatchService()) {
+			WatchKey configKey = configDir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			WatchKey pidLogKey = pidLog.getParentFile().toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			logger.info("Started watching " + configDir + " and " + pidLog);
+
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = ws.take();
+				boolean changed = false;
+
+				// drain all events arriving until changes settle, so that a burst results in one detection
+				while (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (key == configKey || event.kind() == StandardWatchEventKinds.OVERFLOW
+								|| (key == pidLogKey && pidLog.getName().equals(((Path) event.context()).toString()))) {
+							changed = true;
+						}
+					}
+
+					if (!key.reset()) {
+						logger.warn("Watched directory has gone, setups are detected periodically only");
+						return;
+					}
+
+					key = ws.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+				}
+
+				if (changed) {
+					logger.debug("Configuration changed, detecting setups");
+					setupManager.detectSetups();
+				}
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Configuration watch failed, setups are detected periodically only", e);
+		}
+	}
+}
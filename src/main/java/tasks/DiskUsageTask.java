@@ -1,15 +1,15 @@
 package tasks;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
 import org.apache.log4j.Logger;
 
 import utils.DAQSetup;
+import utils.DiskUsage;
+import utils.Metrics;
 import utils.SetupManager;
 
 /**
@@ -21,16 +21,23 @@ import utils.SetupManager;
 public class DiskUsageTask implements Runnable{
 
 	SetupManager setupManager;
+
+	/** disk usage accounting of each setup, by normalized setup name (only accessed by the task thread) */
+	private final Map<String, DiskUsage> usages = new HashMap<String, DiskUsage>();
+
+	/** walks hour directories in parallel */
+	private final ExecutorService listingPool;
 	
 	private static final Logger logger = Logger.getLogger(DiskUsageTask.class);
 	
-	public DiskUsageTask(SetupManager setupManager) {
+	public DiskUsageTask(SetupManager setupManager, ExecutorService listingPool) {
 		this.setupManager = setupManager;
+		this.listingPool = listingPool;
 	}
 	
 	@Override
 	public void run() {
-		Date tic = new Date();
+		long tic = System.nanoTime();
 		
 		//act upon a copy of setups and only call setup manager objects just to set values, once the DU jobs have finished
 		
@@ -39,50 +46,35 @@ public class DiskUsageTask implements Runnable{
 		Map<String, String> map = new HashMap<String, String>();
 		
 		for (DAQSetup setup : setups){
-			String result = queryDiskUsage(setup.getSnapshotPath());
+			String result = queryDiskUsage(setup);
 			map.put(setup.getName(), result);
 		}
 		
 		setupManager.updateDiskUsage(map);
 		
-		Date toc = new Date();
-		logger.info("Disk usage estimation task for "+map.size()+" setups took "+(toc.getTime()-tic.getTime())+" milliseconds");
+		Metrics.diskUsage.recordSince(tic);
+		logger.info("Disk usage estimation task for "+map.size()+" setups took "+(System.nanoTime()-tic)/1000000+" milliseconds");
 	}
 	
-	private String queryDiskUsage(String setupSnapshotPath) {
-		String ret;
-		
-		return "Off";
-
-		/* waste of server processor time
-		try {
-			Process p = Runtime.getRuntime().exec("du -sh "+setupSnapshotPath);
-
-			BufferedReader ips =  new BufferedReader(new InputStreamReader(p.getInputStream()));
+	private String queryDiskUsage(DAQSetup setup) {
+		DiskUsage usage = usages.get(setup.getName());
 
-			String line;
-			String pInfo ="";
-			while ((line = ips.readLine()) != null) {
-				pInfo+=line; 
-			}
-
-			ips.close();
-
-
-			ret = pInfo.split("/")[0].trim();
-
-			//a valid du response contains at least one char for the quantity and one char for the units
-			if (ret.length()<2){
-				ret = null;
-			}
+		if (usage == null || !usage.getRoot().equals(setup.getSnapshotPath())) {
+			usage = new DiskUsage(setup.getSnapshotPath(), listingPool);
+			usages.put(setup.getName(), usage);
+		}
 
+		try {
+			long start = System.currentTimeMillis();
+			long bytes = usage.measure();
+			logger.debug("Disk usage of setup " + setup.getName() + ": " + bytes + " bytes (" + usage.getClosedDirectories()
+					+ " closed directories cached), measured in " + (System.currentTimeMillis() - start) + " ms");
 
-		}catch(IOException e){
-			ret = "?";
-			logger.warn("Could not find out disk usage of directory "+setupSnapshotPath);
+			// a setup which has never run has no snapshot directory, and no data: reported as before measuring
+			return bytes > 0 ? DiskUsage.format(bytes) : "Off";
+		} catch (RuntimeException e) {
+			logger.warn("Could not find out disk usage of directory " + setup.getSnapshotPath(), e);
+			return "?";
 		}
-
-		return ret;
-		*/
 	}
 }
@@ -3,11 +3,20 @@ package tasks;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -15,120 +24,370 @@ import rcms.utilities.daqaggregator.data.DAQ;
 import rcms.utilities.daqaggregator.persistence.PersistenceFormat;
 import rcms.utilities.daqaggregator.persistence.StructureSerializer;
 import utils.DAQSetup;
+import utils.LatestSnapshot;
+import utils.Metrics;
 import utils.SetupManager;
+import utils.SingleFlight;
 
 /**
  * 
  * @author Michail Vougioukas (michail.vougioukas@cern.ch) Discovers latest available setups and sets pointer on
  *         DAQSetup objects
+ * 
+ *         Every run hands one discovery unit per setup to a bounded pool, so that a slow snapshot filesystem or a
+ *         huge snapshot of one setup does not delay the others. A setup is never processed by two units at the same
+ *         time, and units exceeding the timeout are interrupted.
  */
 
 public class GetLatestTask implements Runnable {
 
 	SetupManager setupManager;
 
+	/** runs the per-setup discovery units */
+	private final ExecutorService discoveryPool;
+
+	/** units running longer than this are interrupted (ms) */
+	private final long setupTimeout;
+
+	/** number of directory levels (year/month/day/hour) between the setup root and the snapshot files */
+	public static final int TIME_DIRECTORY_LEVELS = 4;
+
+	private static final long HOUR_MILLIS = 3600000;
+
+	/** upper directory levels are re-listed at least this often (ms), even without an hour rollover */
+	private static final long FULL_RESOLVE_PERIOD = 60000;
+
+	/** after an hour rollover, upper directory levels are re-listed at every run until the new hour directory is
+	 * found or this much time has passed (ms) */
+	private static final long ROLLOVER_GRACE = 60000;
+
+	/** on-demand discoveries of setups without latest snapshot, by normalized setup name */
+	private final SingleFlight<String, LatestSnapshot> coldStarts = new SingleFlight<String, LatestSnapshot>();
+
+	/** position of each setup in its snapshot hierarchy, by normalized setup name */
+	private final ConcurrentMap<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+
 	private static final Logger logger = Logger.getLogger(GetLatestTask.class);
 
-	public GetLatestTask(SetupManager setupManager) {
+	public GetLatestTask(SetupManager setupManager, ExecutorService discoveryPool, long setupTimeout) {
 		this.setupManager = setupManager;
+		this.discoveryPool = discoveryPool;
+		this.setupTimeout = setupTimeout;
 	}
 
 	@Override
 	public void run() {
-		Date tic = new Date();
+		long now = System.currentTimeMillis();
 
 		// act upon a copy of setups and only call setup manager objects just to set values, once the discovery jobs
 		// have finished
 
 		List<DAQSetup> setups = setupManager.getAvailableSetups();
 
-		Map<String, String> map = new HashMap<String, String>();
-
+		int submitted = 0;
 		for (DAQSetup setup : setups) {
-			try {
-				String result = findLatestSnapshot(setup.getSnapshotPath());
+			Cursor cursor = cursors.get(setup.getName());
+
+			// units of hung setups are interrupted, but keep their setup busy until they actually return; units still
+			// queued (e.g. behind other hung setups) have not started and cannot time out
+			long startedAt = cursor != null ? cursor.startedAt.get() : 0;
+			if (cursor != null && cursor.inFlight.get() && startedAt > 0 && cursor.unit != null
+					&& !cursor.unit.isDone() && now - startedAt > setupTimeout) {
+				logger.warn("Latest snapshot discovery for setup " + setup.getName() + " has been running for "
+						+ (now - startedAt) + " ms, interrupting it");
+				cancel(setup, cursor);
+			}
+
+			if (submit(setup, false)) {
+				submitted++;
+			}
+		}
+
+		logger.trace("Submitted latest snapshot discovery for " + submitted + " of " + setups.size() + " setups");
+	}
+
+	/**
+	 * Discovers and publishes the latest snapshot of a single setup (used when a change has been signalled for it,
+	 * e.g. by the {@link SnapshotWatchTask}). If the setup is being processed at the moment, it is processed once
+	 * more right afterwards.
+	 * 
+	 * @param hierarchyChanged
+	 *            true if new directories are known to have appeared, so that the hierarchy is walked again instead
+	 *            of only listing the current hour directory
+	 */
+	public void discover(DAQSetup setup, boolean hierarchyChanged) {
+		if (!submit(setup, hierarchyChanged)) {
+			getCursor(setup).rerun = true;
+		}
+	}
+
+	/**
+	 * Discovers the latest snapshot of a setup right away and waits for it, for requests arriving before the setup
+	 * has been processed for the first time (e.g. just after startup). Concurrent callers for the same setup wait
+	 * for the same discovery.
+	 * 
+	 * @return latest snapshot, or null if none could be discovered within the timeout
+	 */
+	public LatestSnapshot discoverLatest(final DAQSetup setup, final long timeout) throws IOException {
+		return coldStarts.execute(setup.getName(), new Callable<LatestSnapshot>() {
+			@Override
+			public LatestSnapshot call() {
+				if (setup.getLatestSnapshot() == null) {
+					// if the setup is being processed already, the running unit is awaited
+					submit(setup, false);
+					Future<?> unit = getCursor(setup).unit;
+
+					if (unit != null) {
+						try {
+							unit.get(timeout, TimeUnit.MILLISECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (ExecutionException | CancellationException | TimeoutException e) {
+							logger.warn("Latest snapshot of setup " + setup.getName() + " not discovered on demand: " + e);
+						}
+					}
+				}
+				return setup.getLatestSnapshot();
+			}
+		});
+	}
+
+	/** @return false if the setup is already being processed */
+	private boolean submit(final DAQSetup setup, boolean hierarchyChanged) {
+		final Cursor cursor = getCursor(setup);
+
+		if (hierarchyChanged) {
+			cursor.hierarchyChanged = true;
+		}
+
+		if (!cursor.inFlight.compareAndSet(false, true)) {
+			return false;
+		}
+
+		cursor.startedAt.set(0);
+		try {
+			cursor.unit = discoveryPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					// not if withdrawn while queued
+					if (cursor.startedAt.compareAndSet(0, System.currentTimeMillis())) {
+						discoverNow(setup, cursor);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			cursor.inFlight.set(false); // shutting down
+		}
+
+		return true;
+	}
+
+	/**
+	 * Cancels the unit processing a setup: a running unit is interrupted and clears the in-flight flag itself once it
+	 * returns, a unit which has not started yet is withdrawn and will never run, so the flag is cleared here
+	 */
+	private void cancel(DAQSetup setup, Cursor cursor) {
+		Future<?> unit = cursor.unit;
+
+		if (cursor.startedAt.compareAndSet(0, -1)) {
+			unit.cancel(false);
+			cursor.inFlight.set(false);
+
+			if (cursor.rerun) {
+				submit(setup, false);
+			}
+		} else {
+			unit.cancel(true);
+		}
+	}
+
+	private void discoverNow(DAQSetup setup, Cursor cursor) {
+		try {
+			do {
+				cursor.rerun = false;
+				long tic = System.nanoTime();
+
+				LatestSnapshot result = findLatestSnapshot(setup, cursor);
 				if (result != null) {
-					map.put(setup.getName(), result);
+					setupManager.updateLatestSnapshot(setup.getName(), result);
+					Metrics.published.increment();
 				}
-			} catch (Exception e) {
-				logger.warn("Failed finding the latest snapshot for setup: " + setup.getName());
+
+				Metrics.discovery.recordSince(tic);
+				logger.debug("Latest snapshot discovery for setup " + setup.getName() + " took "
+						+ (System.nanoTime() - tic) / 1000000 + " milliseconds");
+
+			} while (cursor.rerun && !Thread.currentThread().isInterrupted());
+		} catch (Exception e) {
+			Metrics.discoveryFailures.increment();
+			logger.warn("Failed finding the latest snapshot for setup: " + setup.getName());
+		} finally {
+			cursor.inFlight.set(false);
+		}
+
+		// a change signalled after the last iteration above but before the flag was cleared
+		if (cursor.rerun && !Thread.currentThread().isInterrupted()) {
+			submit(setup, false);
+		}
+	}
+
+	private Cursor getCursor(DAQSetup setup) {
+		Cursor cursor = cursors.get(setup.getName());
+		if (cursor == null) {
+			Cursor created = new Cursor();
+			cursor = cursors.putIfAbsent(setup.getName(), created);
+			if (cursor == null) {
+				cursor = created;
 			}
 		}
+		return cursor;
+	}
 
-		setupManager.updateLatestSnapshot(map);
+	/**
+	 * Walks the time-based hierarchy under a setup root, always descending into the newest directory
+	 * 
+	 * @return directories from the root down to the newest hour directory, or fewer if the hierarchy is not complete
+	 *         yet (e.g. a new day directory without hour directories)
+	 */
+	public static List<File> findLatestDirectories(File root) {
+		List<File> dirs = new ArrayList<File>();
+		dirs.add(root);
+
+		File current = root;
+		for (int level = 0; level < TIME_DIRECTORY_LEVELS; level++) {
+			File[] children = current.listFiles();
+			if (children == null || children.length == 0) {
+				break;
+			}
+			current = children[getMax(children)];
+			dirs.add(current);
+		}
 
-		Date toc = new Date();
-		logger.debug("Latest setup discovery task for " + map.size() + " setups took " + (toc.getTime() - tic.getTime())
-				+ " milliseconds");
+		return dirs;
 	}
 
-	private String findLatestSnapshot(String setupSnapshotPath) {
+	/**
+	 * Finds the newest snapshot of a setup, listing only its current hour directory unless the hour may have rolled
+	 * over, and decodes it
+	 * 
+	 * @return the encoded snapshot, or null if there is no newer snapshot than the one returned previously
+	 */
+	private LatestSnapshot findLatestSnapshot(DAQSetup setup, Cursor cursor) {
+		String setupSnapshotPath = setup.getSnapshotPath();
 		String path; // path to a smile file
-		String ret = "";
+		byte[] json;
+
+		if (!setupSnapshotPath.equals(cursor.root)) {
+			cursor.reset(setupSnapshotPath);
+		}
+
+		if (cursor.hierarchyChanged) {
+			cursor.hierarchyChanged = false;
+			cursor.hourDir = null;
+		}
+
+		File newest;
 
 		try {
 			// implementation based on the temporal ordering of directories and files in the time-based hierarchy
 
-			File root = new File(setupSnapshotPath);
+			long now = System.currentTimeMillis();
 
-			// case when no snapshots have been produced for this setup
-			if (root.length() == 0) {
-				return null;
+			if (now / HOUR_MILLIS != cursor.hour) {
+				cursor.hour = now / HOUR_MILLIS;
+				cursor.rolledOverFrom = cursor.hourDir;
 			}
 
-			File[] years = root.listFiles(); // dirs of year
-
-			int maxYear = getMax(years); // position for max year
+			boolean rollingOver = cursor.rolledOverFrom != null && now % HOUR_MILLIS < ROLLOVER_GRACE;
 
-			File[] months = years[maxYear].listFiles();
+			if (cursor.hourDir == null || rollingOver || now - cursor.resolvedAt >= FULL_RESOLVE_PERIOD) {
+				File root = new File(setupSnapshotPath);
 
-			int maxMonth = getMax(months); // position for max month
+				// case when no snapshots have been produced for this setup
+				if (root.length() == 0) {
+					return null;
+				}
 
-			File[] days = months[maxMonth].listFiles();
+				List<File> dirs = findLatestDirectories(root); // root, year, month, day, hour
 
-			int maxDay = getMax(days); // position for max day
+				// case when the newest branch of the hierarchy does not reach down to an hour directory yet
+				if (dirs.size() <= TIME_DIRECTORY_LEVELS) {
+					return null;
+				}
 
-			File[] hours = days[maxDay].listFiles();
+				cursor.hourDir = dirs.get(TIME_DIRECTORY_LEVELS);
+				cursor.resolvedAt = now;
+				if (!cursor.hourDir.equals(cursor.rolledOverFrom)) {
+					cursor.rolledOverFrom = null;
+				}
+			}
 
-			int maxHour = getMax(hours); // position for max hour
+			File[] snapshots = cursor.hourDir.listFiles();
 
-			File[] snapshots = hours[maxHour].listFiles();
+			// hour directory has disappeared, the hierarchy will be walked again at next run
+			if (snapshots == null) {
+				cursor.hourDir = null;
+				return null;
+			}
 
 			// if snapshots in this hour were not found (in practice should not occur)
 			if (snapshots.length == 0) {
 				return null;
 			}
 
-			int maxSnapshotTimestamp = getMax(snapshots); // position for snapshot file at max unix timestamp
+			newest = snapshots[getMax(snapshots)]; // snapshot file at max unix timestamp
+
+			// if newest snapshot in this hour was not found (only tmp files so far)
+			if (newest.getName().endsWith(".tmp")) {
+				return null;
+			}
 
-			// if newest snapshot in this hour was not found (first file discovered is tmp)
-			if (snapshots.length == -1) {
+			// same file as at previous run, decoding it again would produce an identical result
+			if (newest.getName().equals(cursor.lastFileName) && newest.lastModified() == cursor.lastModified) {
 				return null;
 			}
 
-			path = snapshots[maxSnapshotTimestamp].getAbsolutePath();
+			path = newest.getAbsolutePath();
 
-			logger.debug("Newest snapshot in " + setupSnapshotPath + " > " + snapshots[maxSnapshotTimestamp].getName());
+			logger.debug("Newest snapshot in " + setupSnapshotPath + " > " + newest.getName());
 
 		} catch (RuntimeException e) {
 			e.printStackTrace();
 			logger.error("Could not find latest snapshot under root: " + setupSnapshotPath);
+			cursor.hourDir = null;
 			return null;
 		}
 
 		// deserialization of snapshot
-		ret = deserializeSnapshot(path); // can be null or a deserialized snapshot in json string
-		logger.debug("Deserialized: " + ret.substring(0, 500));
+		json = deserializeSnapshot(path); // can be null or a deserialized snapshot in json bytes
+
+		if (json == null) {
+			return null;
+		}
+
+		LatestSnapshot ret;
+		try {
+			ret = new LatestSnapshot(newest, json, setup.getLatestSnapshot()); // previous one, to compute patches
+		} catch (IOException e) {
+			logger.error("Could not compress snapshot", e);
+			return null;
+		}
+
+		cursor.lastFileName = newest.getName();
+		cursor.lastModified = ret.getLastModified();
+		logger.debug("Deserialized " + newest.getName() + ": " + json.length + " bytes");
 		return ret;
 
 	}
 
-	private String deserializeSnapshot(String path) {
-		String json;
+	private byte[] deserializeSnapshot(String path) {
+		byte[] json;
 
 		try {
 			logger.trace("Deserializing snapshot: " + path);
+			long tic = System.nanoTime();
 			DAQ result = loadSnapshot(path);
+			Metrics.decode.recordSince(tic);
 
 			logger.trace("Deserialized snapshot (accessing timestamp): " + result.getLastUpdate());
 
@@ -139,15 +398,18 @@ public class GetLatestTask implements Runnable {
 			logger.trace("Serializing snapshot...");
 
 			// the usual client of getLatest requests needs the most compact possible format
+			tic = System.nanoTime();
 			ss.serialize(result, baos, PersistenceFormat.JSONREFPREFIXEDUGLY);
+			Metrics.encode.recordSince(tic);
 
 			logger.trace("Serialized.");
 
-			json = baos.toString(java.nio.charset.StandardCharsets.UTF_8.toString());
+			json = baos.toByteArray(); // UTF-8, as written by the serializer
 
 		} catch (Exception e) {
 			e.printStackTrace();
 			logger.error("Could not deserialize snapshot");
+			Metrics.discoveryFailures.increment();
 			return null;
 		}
 
@@ -161,7 +423,7 @@ public class GetLatestTask implements Runnable {
 		return ret;
 	}
 
-	private int getMax(File[] items) {
+	private static int getMax(File[] items) {
 		int posAtMax = 0; // position of File array where the maximum value is
 		long max = -1;
 
@@ -198,4 +460,56 @@ public class GetLatestTask implements Runnable {
 		return posAtMax;
 	}
 
+	/**
+	 * Position of a setup in its snapshot hierarchy, remembered between runs. Apart from the volatile fields, it is
+	 * only accessed by the unit holding the in-flight flag.
+	 */
+	private static class Cursor {
+
+		/** set while a discovery unit processes the setup */
+		final AtomicBoolean inFlight = new AtomicBoolean();
+
+		/** the unit currently or last processing the setup */
+		volatile Future<?> unit;
+
+		/** when that unit started running: 0 while it is queued, -1 if it was withdrawn before starting */
+		final AtomicLong startedAt = new AtomicLong();
+
+		/** a change was signalled while the setup was being processed */
+		volatile boolean rerun;
+
+		/** new directories were signalled, the hierarchy has to be walked again */
+		volatile boolean hierarchyChanged;
+
+		/** snapshot root of the setup the rest of the cursor refers to */
+		String root;
+
+		/** newest hour directory found at the last walk of the hierarchy */
+		File hourDir;
+
+		/** time of the last walk of the hierarchy */
+		long resolvedAt;
+
+		/** wall-clock hour (since epoch) of the last run */
+		long hour = -1;
+
+		/** hour directory in use when the wall-clock hour changed, until a newer one is found */
+		File rolledOverFrom;
+
+		/** name and modification time of the last successfully decoded snapshot */
+		String lastFileName;
+
+		long lastModified;
+
+		void reset(String root) {
+			this.root = root;
+			this.hourDir = null;
+			this.resolvedAt = 0;
+			this.hour = -1;
+			this.rolledOverFrom = null;
+			this.lastFileName = null;
+			this.lastModified = 0;
+		}
+	}
+
 }
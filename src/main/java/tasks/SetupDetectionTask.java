@@ -1,9 +1,8 @@
 package tasks;
 
-import java.util.Date;
-
 import org.apache.log4j.Logger;
 
+import utils.Metrics;
 import utils.SetupManager;
 
 /**
@@ -24,11 +23,11 @@ public class SetupDetectionTask implements Runnable{
 	
 	@Override
 	public void run() {
-		Date tic = new Date();
+		long tic = System.nanoTime();
 		//acts entirely upon the setup manager object and the contained setup objects themselves
 		setupManager.detectSetups();
-		Date toc = new Date();
+		Metrics.setupDetection.recordSince(tic);
 
-		logger.debug("Setup detection task took "+(toc.getTime()-tic.getTime())+" milliseconds");
+		logger.debug("Setup detection task took "+(System.nanoTime()-tic)/1000000+" milliseconds");
 	}
 }
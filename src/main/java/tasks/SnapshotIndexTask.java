@@ -0,0 +1,110 @@
+package tasks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+
+import utils.DAQSetup;
+import utils.Metrics;
+import utils.SetupManager;
+import utils.SnapshotIndex;
+
+/**
+ * Keeps the time index of every setup up to date.
+ *
+ * The first run loads each index from its sidecar file (if any) and catches up with the filesystem, setups
+ * being processed in parallel. An index is only handed to its setup once it is complete, until then time
+ * queries keep listing directories. Later runs only index the snapshots written since.
+ */
+
+public class SnapshotIndexTask implements Runnable {
+
+	SetupManager setupManager;
+
+	/** indexes setups in parallel */
+	private final ExecutorService indexPool;
+
+	/** lists the hour directories of each setup in parallel */
+	private final ExecutorService listingPool;
+
+	/** directory of the index sidecar files, or null if indexes are not persisted */
+	private final File indexDir;
+
+	/** index of each setup, by normalized setup name */
+	private final ConcurrentMap<String, SnapshotIndex> indexes = new ConcurrentHashMap<String, SnapshotIndex>();
+
+	private static final Logger logger = Logger.getLogger(SnapshotIndexTask.class);
+
+	public SnapshotIndexTask(SetupManager setupManager, ExecutorService indexPool, ExecutorService listingPool,
+			File indexDir) {
+		this.setupManager = setupManager;
+		this.indexPool = indexPool;
+		this.listingPool = listingPool;
+		this.indexDir = indexDir;
+
+		if (indexDir != null && !indexDir.isDirectory() && !indexDir.mkdirs()) {
+			logger.warn("Could not create index directory " + indexDir + ", indexes will not be persisted");
+		}
+	}
+
+	@Override
+	public void run() {
+		long tic = System.nanoTime();
+		List<Callable<Void>> units = new ArrayList<Callable<Void>>();
+
+		for (final DAQSetup setup : setupManager.getAvailableSetups()) {
+			if (setup.isMasked() || !setup.isSetupConfigFileDeclared()) {
+				continue;
+			}
+
+			units.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					index(setup);
+					return null;
+				}
+			});
+		}
+
+		try {
+			// waiting for all units keeps runs from overlapping
+			indexPool.invokeAll(units);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		Metrics.indexUpdate.recordSince(tic);
+	}
+
+	private void index(DAQSetup setup) {
+		try {
+			SnapshotIndex index = indexes.get(setup.getName());
+
+			if (index == null || !index.getRoot().equals(setup.getSnapshotPath())) {
+				File sidecar = indexDir != null && indexDir.isDirectory() ? new File(indexDir, setup.getName() + ".idx")
+						: null;
+				index = new SnapshotIndex(setup.getSnapshotPath(), sidecar, listingPool);
+
+				long start = System.currentTimeMillis();
+				index.load();
+				int added = index.update();
+				logger.info("Indexed " + index.size() + " snapshots of setup " + setup.getName() + " (" + added
+						+ " new) in " + (System.currentTimeMillis() - start) + " ms");
+
+				indexes.put(setup.getName(), index);
+				setupManager.updateSnapshotIndex(setup.getName(), index);
+			} else {
+				int added = index.update();
+				logger.trace("Indexed " + added + " new snapshots of setup " + setup.getName());
+			}
+		} catch (RuntimeException e) {
+			logger.error("Failed to index snapshots of setup " + setup.getName(), e);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import utils.DAQSetup;
+import utils.SetupManager;
+
+/**
+ * Event-driven alternative to polling with {@link GetLatestTask}. For every setup it watches the chain of
+ * directories from the snapshot root down to the newest hour directory. A new snapshot file in the hour directory
+ * triggers discovery for that setup only, while a new year/month/day/hour directory makes the watch follow the
+ * rollover.
+ *
+ * DAQAggregator writes snapshots as .tmp files and renames them once finished, so only non-.tmp entries are
+ * considered. Notifications are not reliable on every filesystem (e.g. changes made by other NFS clients), so this
+ * task is meant to be paired with a low-frequency {@link GetLatestTask} as fallback.
+ *
+ * This task runs until interrupted and must therefore be given its own thread.
+ */
+
+public class SnapshotWatchTask implements Runnable {
+
+	SetupManager setupManager;
+
+	GetLatestTask getLatestTask;
+
+	/** how often the watched setups are reconciled with the setups known to the setup manager (ms) */
+	private static final long SYNC_PERIOD = 10000;
+
+	private WatchService watchService;
+
+	/** watch key to normalized name of the setup whose directory it watches */
+	private final Map<WatchKey, String> keys = new HashMap<WatchKey, String>();
+
+	/** normalized setup name to currently registered keys (root first, hour directory last) */
+	private final Map<String, List<WatchKey>> setupKeys = new HashMap<String, List<WatchKey>>();
+
+	/** normalized setup name to the directories the registered keys refer to */
+	private final Map<String, List<File>> watchedDirs = new HashMap<String, List<File>>();
+
+	private static final Logger logger = Logger.getLogger(SnapshotWatchTask.class);
+
+	public SnapshotWatchTask(SetupManager setupManager, GetLatestTask getLatestTask) {
+		this.setupManager = setupManager;
+		this.getLatestTask = getLatestTask;
+	}
+
+	@Override
+	public void run() {
+		try (WatchService ws = FileSystems.getDefault().newWatchService()) {
+			this.watchService = ws;
+			logger.info("Started watching snapshot directories");
+
+			long lastSync = 0;
+
+			while (!Thread.currentThread().isInterrupted()) {
+
+				if (System.currentTimeMillis() - lastSync >= SYNC_PERIOD) {
+					synchronizeSetups();
+					lastSync = System.currentTimeMillis();
+				}
+
+				WatchKey key = ws.poll(SYNC_PERIOD, TimeUnit.MILLISECONDS);
+
+				// drain all pending keys, so that a burst of events results in one discovery per setup
+				Set<String> changedSetups = new HashSet<String>();
+				Set<String> rolledOverSetups = new HashSet<String>();
+				while (key != null) {
+					String setupName = keys.get(key);
+
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() != StandardWatchEventKinds.OVERFLOW
+								&& ((Path) event.context()).toString().endsWith(".tmp")) {
+							continue; // snapshot still being written
+						}
+						if (setupName != null) {
+							changedSetups.add(setupName);
+							if (!isHourDirectoryKey(setupName, key)) {
+								rolledOverSetups.add(setupName);
+							}
+						}
+					}
+
+					if (!key.reset()) {
+						// watched directory is gone, the next synchronization will re-register the setup
+						keys.remove(key);
+						if (setupName != null) {
+							watchedDirs.remove(setupName);
+						}
+					}
+
+					key = ws.poll();
+				}
+
+				for (String setupName : changedSetups) {
+					onChange(setupName, rolledOverSetups.contains(setupName));
+				}
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Snapshot directory watch failed, latest snapshots will only be discovered by polling", e);
+		}
+
+		logger.info("Stopped watching snapshot directories");
+	}
+
+	/** Follows a rollover for a setup, if any, and publishes its newest snapshot */
+	private void onChange(String setupName, boolean rolledOver) {
+		DAQSetup setup = setupManager.getSetupByName(setupName);
+
+		if (setup == null || setup.isMasked() || !setup.isSetupConfigFileDeclared()) {
+			unregister(setupName);
+			return;
+		}
+
+		// register first, so that files created in a new hour directory meanwhile are caught by the discovery below
+		if (rolledOver) {
+			register(setup);
+		}
+		getLatestTask.discover(setup, rolledOver);
+	}
+
+	/** True if the key watches the hour directory of a setup, i.e. its events are new snapshot files */
+	private boolean isHourDirectoryKey(String setupName, WatchKey key) {
+		List<WatchKey> registered = setupKeys.get(setupName);
+		List<File> dirs = watchedDirs.get(setupName);
+
+		return registered != null && dirs != null && dirs.size() > GetLatestTask.TIME_DIRECTORY_LEVELS
+				&& registered.size() == dirs.size() && registered.get(registered.size() - 1) == key;
+	}
+
+	/** Registers new and changed setups and drops setups which have disappeared or have been masked */
+	private void synchronizeSetups() {
+		Set<String> current = new HashSet<String>();
+
+		for (DAQSetup setup : setupManager.getAvailableSetups()) {
+			if (setup.isMasked() || !setup.isSetupConfigFileDeclared()) {
+				continue;
+			}
+			current.add(setup.getName());
+
+			List<File> dirs = watchedDirs.get(setup.getName());
+			if (dirs == null || !dirs.get(0).equals(new File(setup.getSnapshotPath()))) {
+				register(setup);
+				getLatestTask.discover(setup, true);
+			}
+		}
+
+		for (String setupName : new ArrayList<String>(setupKeys.keySet())) {
+			if (!current.contains(setupName)) {
+				unregister(setupName);
+			}
+		}
+	}
+
+	/** (Re-)registers the directory chain leading to the newest hour directory of a setup, if it has changed */
+	private void register(DAQSetup setup) {
+		List<File> dirs = GetLatestTask.findLatestDirectories(new File(setup.getSnapshotPath()));
+
+		if (dirs.equals(watchedDirs.get(setup.getName()))) {
+			return;
+		}
+
+		unregister(setup.getName());
+
+		List<WatchKey> registered = new ArrayList<WatchKey>();
+		for (File dir : dirs) {
+			try {
+				WatchKey key = dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+				keys.put(key, setup.getName());
+				registered.add(key);
+			} catch (IOException e) {
+				logger.warn("Could not watch directory " + dir + " of setup " + setup.getName());
+				break;
+			}
+		}
+
+		setupKeys.put(setup.getName(), registered);
+		watchedDirs.put(setup.getName(), dirs);
+
+		logger.debug("Watching " + registered.size() + " directories of setup " + setup.getName() + " down to "
+				+ dirs.get(dirs.size() - 1));
+	}
+
+	private void unregister(String setupName) {
+		List<WatchKey> registered = setupKeys.remove(setupName);
+		watchedDirs.remove(setupName);
+
+		if (registered == null) {
+			return;
+		}
+
+		for (WatchKey key : registered) {
+			key.cancel();
+			keys.remove(key);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package tasks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import utils.DAQSetup;
+import utils.Metrics;
+import utils.SetupManager;
+import utils.SnapshotIndex;
+import utils.TrendStore;
+
+/**
+ * Records the trends of the snapshots archived in the last days, for all setups whose time index is built. Fields
+ * are read from the stored SMILE files as they are, without decoding snapshots.
+ *
+ * Snapshots not recorded yet are merged into the trend one day at a time, so that gaps before or between the rows
+ * recorded live (e.g. before deployment, or while redeploying) are filled as well.
+ */
+
+public class TrendBackfillTask implements Runnable {
+
+	SetupManager setupManager;
+
+	private final TrendStore trendStore;
+
+	private final long days;
+
+	private final SmileFactory smileFactory = new SmileFactory();
+
+	private static final Logger logger = Logger.getLogger(TrendBackfillTask.class);
+
+	public TrendBackfillTask(SetupManager setupManager, TrendStore trendStore, long days) {
+		this.setupManager = setupManager;
+		this.trendStore = trendStore;
+		this.days = days;
+	}
+
+	@Override
+	public void run() {
+		long tic = System.nanoTime();
+		long to = System.currentTimeMillis();
+		long from = to - days * 86400000;
+		int total = 0;
+
+		for (DAQSetup setup : setupManager.getAvailableSetups()) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+
+			SnapshotIndex index = setup.getSnapshotIndex();
+			if (index == null) {
+				logger.info("Snapshot index of " + setup.getName() + " not built yet, not back-filling its trend");
+				continue;
+			}
+
+			try {
+				total += backfill(setup.getName(), index, from, to);
+			} catch (IOException e) {
+				logger.error("Could not back-fill trend of " + setup.getName(), e);
+			}
+		}
+
+		logger.info("Trend back-fill of " + total + " snapshots of the last " + days + " days took "
+				+ (System.nanoTime() - tic) / 1000000 + " milliseconds");
+	}
+
+	private int backfill(String setup, SnapshotIndex index, long from, long to) throws IOException {
+		int merged = 0;
+		long dayEnd = Long.MIN_VALUE;
+		long[] recorded = new long[0];
+		List<Long> timestamps = new ArrayList<Long>();
+		List<double[]> rows = new ArrayList<double[]>();
+
+		for (long timestamp : index.getRange(from, to)) {
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+
+			// rows of each day merged at once, rows recorded meanwhile are skipped by the store
+			if (timestamp >= dayEnd) {
+				merged += merge(setup, timestamps, rows);
+				recorded = trendStore.getTimestamps(setup, timestamp);
+				dayEnd = (Math.floorDiv(timestamp, 86400000L) + 1) * 86400000L;
+			}
+			if (Arrays.binarySearch(recorded, timestamp) >= 0) {
+				continue;
+			}
+
+			File file = index.getFile(timestamp);
+			if (file == null) {
+				continue;
+			}
+
+			long tic = System.nanoTime();
+			try (InputStream in = new FileInputStream(file)) {
+				rows.add(trendStore.extract(smileFactory.createParser(in)));
+				timestamps.add(timestamp);
+			} catch (IOException e) {
+				// e.g. removed meanwhile, or partially written
+				logger.debug("Could not read trend fields from " + file + ": " + e);
+				continue;
+			}
+			Metrics.trendIngest.recordSince(tic);
+		}
+		merged += merge(setup, timestamps, rows);
+
+		logger.info("Back-filled trend of " + setup + " with " + merged + " snapshots");
+		return merged;
+	}
+
+	/** Merges the rows of one day into the trend, and clears them */
+	private int merge(String setup, List<Long> timestamps, List<double[]> rows) throws IOException {
+		long[] times = new long[timestamps.size()];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = timestamps.get(i);
+		}
+
+		int merged = trendStore.merge(setup, times, rows.toArray(new double[rows.size()][]));
+		timestamps.clear();
+		rows.clear();
+		return merged;
+	}
+}
@@ -30,9 +30,17 @@ public class APIPersistorManager extends PersistorManager {
 
 	private final PersistenceExplorer persistenceExplorer;
 
+	/** time index of the snapshots in the persistence dir, or null if not available */
+	private final SnapshotIndex snapshotIndex;
+
 	public APIPersistorManager(String persistenceDir) {
+		this(persistenceDir, null);
+	}
+
+	public APIPersistorManager(String persistenceDir, SnapshotIndex snapshotIndex) {
 		super(persistenceDir, null, PersistenceFormat.SMILE, null);
 		persistenceExplorer = new PersistenceExplorer(new FileSystemConnector());
+		this.snapshotIndex = snapshotIndex;
 	}
 
 	private ObjectMapper objectMapper = new ObjectMapper();
@@ -46,11 +54,35 @@ public class APIPersistorManager extends PersistorManager {
 	 * @throws IOException
 	 */
 	public DAQ findSnapshot(Date date) throws IOException {
+		File best = findSnapshotFile(date);
+
+		if (best == null) {
+			logger.warn("No snapshot found for date " + date);
+			return null;
+		}
+
+		return new StructureSerializer().deserialize(best.getAbsolutePath());
+	}
+
+	/**
+	 * Find snapshot file which is the closest to given date, without deserializing it
+	 * 
+	 * @param date
+	 *            requested date to find snapshot
+	 * @return snapshot file found for given date, or null if none
+	 */
+	public File findSnapshotFile(Date date) throws IOException {
 		List<File> candidates = new ArrayList<>();
 		String candidateDir = null;
 
 		logger.debug("Searching snapshot for date: " + date + ", base dir: " + snapshotPersistenceDir);
 
+		File indexed = findIndexedSnapshot(date);
+		if (indexed != null) {
+			logger.debug("Best file found in index: " + indexed);
+			return indexed;
+		}
+
 		candidateDir = this.getTimeDir(snapshotPersistenceDir, date);
 
 		logger.debug("Candidates will be searched in " + candidateDir);
@@ -62,7 +94,8 @@ public class APIPersistorManager extends PersistorManager {
 			logger.warn("Cannot access persistence dir: "+candidateDir+", ignoring...");
 		}
 
-		return findSnapshot(date, candidates);
+		String bestFile = findBestFile(date, candidates);
+		return bestFile != null ? new File(bestFile) : null;
 
 	}
 
@@ -89,48 +122,31 @@ public class APIPersistorManager extends PersistorManager {
 
 	}
 
+	/**
+	 * Finds the snapshot closest to given date across hour directories with a binary search in the time index.
+	 * Dates after the newest indexed snapshot are not answered, as newer files may not be indexed yet.
+	 *
+	 * @return closest snapshot file, or null if the index cannot answer
+	 */
+	private File findIndexedSnapshot(Date date) {
+		if (snapshotIndex == null || date.getTime() > snapshotIndex.getLastTimestamp()) {
+			return null;
+		}
+
+		File best = snapshotIndex.findNearest(date.getTime());
+
+		// the file may have been removed since it was indexed (e.g. cleanup of old snapshots)
+		return best != null && best.isFile() ? best : null;
+	}
+
 	private DAQ findSnapshot(Date date, List<File> candidates) {
 		StructureSerializer structurePersistor = new StructureSerializer();
 		try {
 
-			if (candidates.size() == 0) {
-				logger.error("No files to process");
-				return null;
+			String bestFile = findBestFile(date, candidates);
+			if (bestFile != null) {
+				return structurePersistor.deserialize(bestFile);
 			}
-			Collections.sort(candidates, FileSystemConnector.FileComparator);
-
-			long diff = Integer.MAX_VALUE;
-			String bestFile = null;
-			DAQ best = null;
-			for (File path : candidates) {
-
-				String currentName = path.getAbsolutePath().toString();
-				String dateFromFileName = path.getName();
-				if (dateFromFileName.contains(".")) {
-					int indexOfDot = dateFromFileName.indexOf(".");
-					dateFromFileName = dateFromFileName.substring(0, indexOfDot);
-				}
-				Date currentDate;
-				currentDate = objectMapper.readValue(dateFromFileName, Date.class);
-
-				logger.trace("Current file: " + currentName);
-
-				if (bestFile == null) {
-					bestFile = currentName;
-					continue;
-				}
-
-				long currDiff = date.getTime() - currentDate.getTime();
-
-				if (Math.abs(currDiff) < diff) {
-					bestFile = currentName;
-					diff = Math.abs(currDiff);
-				}
-			}
-
-			logger.debug("Best file found: " + bestFile + " with time diff: " + diff + "ms.");
-			best = structurePersistor.deserialize(bestFile);
-			return best;
 
 		} catch (IOException e) {
 			logger.error("IO problem finding snapshot", e);
@@ -140,6 +156,45 @@ public class APIPersistorManager extends PersistorManager {
 		return null;
 	}
 
+	private String findBestFile(Date date, List<File> candidates) throws IOException {
+		if (candidates.size() == 0) {
+			logger.error("No files to process");
+			return null;
+		}
+		Collections.sort(candidates, FileSystemConnector.FileComparator);
+
+		long diff = Integer.MAX_VALUE;
+		String bestFile = null;
+		for (File path : candidates) {
+
+			String currentName = path.getAbsolutePath().toString();
+			String dateFromFileName = path.getName();
+			if (dateFromFileName.contains(".")) {
+				int indexOfDot = dateFromFileName.indexOf(".");
+				dateFromFileName = dateFromFileName.substring(0, indexOfDot);
+			}
+			Date currentDate;
+			currentDate = objectMapper.readValue(dateFromFileName, Date.class);
+
+			logger.trace("Current file: " + currentName);
+
+			if (bestFile == null) {
+				bestFile = currentName;
+				continue;
+			}
+
+			long currDiff = date.getTime() - currentDate.getTime();
+
+			if (Math.abs(currDiff) < diff) {
+				bestFile = currentName;
+				diff = Math.abs(currDiff);
+			}
+		}
+
+		logger.debug("Best file found: " + bestFile + " with time diff: " + diff + "ms.");
+		return bestFile;
+	}
+
 
 
 	public String getDefaultSnapshotPersistenceDir(){
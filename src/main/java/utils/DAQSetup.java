@@ -3,6 +3,8 @@ package utils;
 import java.util.Date;
 
 /**
+ * A DAQ setup, shared by the background tasks updating it and the requests reading it: all fields are volatile, so
+ * that every update is visible to readers without locking.
  * 
  * @author Michail Vougioukas (michail.vougioukas@cern.ch)
  *
@@ -14,38 +16,41 @@ public class DAQSetup {
 	//*fields set from DAQAggregator config files*
 
 	//setup *normalized* name
-	private String name;
+	private final String name;
 
 	//path where snapshots for this setup are stored (root directory path)
-	private String snapshotPath;
+	private volatile String snapshotPath;
 
 	//description of this setup
-	private String remark;
+	private volatile String remark;
 
 	//consumption on disk for this setup storage directories
-	private String diskUsage;
+	private volatile String diskUsage;
 
 	//*fields set from pid file with registered DAQAggregator processes*
 
 	//last Aggregator process ID for this setup
-	private long lastPid;
+	private volatile long lastPid;
 
 	//last Aggregator process status for this setup
-	private String processStatus;
+	private volatile String processStatus;
 
 
 	//*fields set from daqview-react-server config file*
 
 	//setup declared but generally not used, therefore masked
-	private boolean masked;
+	private volatile boolean masked;
 
 	//*other fields*
 
 	//latest snapshot parsed and deserialized as json consumable by clients
-	private String latestSnapshot;
+	private volatile LatestSnapshot latestSnapshot;
+
+	//sorted timestamps of the snapshots on disk, for point-in-time queries (null until built)
+	private volatile SnapshotIndex snapshotIndex;
 	
 	//to prevent starting the same setup twice from the GUI (important as the <start> button will be updated some seconds after the actual setup launch)
-	private Date lastStartCommandTimestamp;
+	private volatile Date lastStartCommandTimestamp;
 	
 	public DAQSetup(String name){
 		this.name = name;
@@ -135,16 +140,26 @@ public class DAQSetup {
 	}
 
 
-	public String getLatestSnapshot() {
+	public LatestSnapshot getLatestSnapshot() {
 		return latestSnapshot;
 	}
 
 
-	public void setLatestSnapshot(String latestSnapshot) {
+	public void setLatestSnapshot(LatestSnapshot latestSnapshot) {
 		this.latestSnapshot = latestSnapshot;
 	}
 
 
+	public SnapshotIndex getSnapshotIndex() {
+		return snapshotIndex;
+	}
+
+
+	public void setSnapshotIndex(SnapshotIndex snapshotIndex) {
+		this.snapshotIndex = snapshotIndex;
+	}
+
+
 	public Date getLastStartCommandTimestamp() {
 		return lastStartCommandTimestamp;
 	}
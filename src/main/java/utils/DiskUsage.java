@@ -0,0 +1,179 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Disk usage of the snapshots of a setup, measured natively instead of forking du. Directories of the time hierarchy
+ * which are closed (off the newest branch, and with no change for a while) never change again, so their totals are
+ * cached: the first measurement walks the whole tree, later ones only the newest branch and new directories.
+ * Hour directories are walked in parallel, on the listing pool.
+ */
+
+public class DiskUsage {
+
+	/** number of directory levels (year/month/day/hour) between the setup root and the snapshot files */
+	private static final int TIME_DIRECTORY_LEVELS = 4;
+
+	/** directories unchanged for this long are considered closed, late snapshots of a previous hour included (ms) */
+	private static final long CLOSE_GRACE = 600000;
+
+	private static final String[] UNITS = { "K", "M", "G", "T", "P" };
+
+	private final String root;
+
+	/** walks hour directories in parallel (null to walk them one after the other) */
+	private final ExecutorService listingPool;
+
+	/** total bytes of closed directories, by path */
+	private final ConcurrentMap<String, Long> closedTotals = new ConcurrentHashMap<String, Long>();
+
+	public DiskUsage(String root, ExecutorService listingPool) {
+		this.root = root;
+		this.listingPool = listingPool;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	/** @return total size of the files under the root (bytes) */
+	public long measure() {
+		return measure(new File(root), 0, true, System.currentTimeMillis()).bytes;
+	}
+
+	/** @return number of closed directories whose totals are cached */
+	public int getClosedDirectories() {
+		return closedTotals.size();
+	}
+
+	private Usage measure(File dir, int level, boolean newestBranch, long now) {
+		Long cached = closedTotals.get(dir.getPath());
+		if (cached != null) {
+			return new Usage(cached, true);
+		}
+
+		Usage usage;
+		if (level == TIME_DIRECTORY_LEVELS) {
+			usage = new Usage(walk(dir.toPath()), !newestBranch);
+		} else {
+			usage = measureChildren(dir, level, newestBranch, now);
+		}
+
+		// checked last, so that a change during the walk keeps the directory open
+		if (usage.closed && now - dir.lastModified() >= CLOSE_GRACE) {
+			closedTotals.put(dir.getPath(), usage.bytes);
+		} else {
+			usage = new Usage(usage.bytes, false);
+		}
+		return usage;
+	}
+
+	private Usage measureChildren(File dir, final int level, final boolean newestBranch, final long now) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return new Usage(0, false);
+		}
+
+		List<File> timeDirs = new ArrayList<File>();
+		long bytes = 0;
+		long newest = Long.MIN_VALUE;
+
+		for (File child : children) {
+			try {
+				long value = Long.parseLong(child.getName());
+				if (child.isDirectory()) {
+					timeDirs.add(child);
+					newest = Math.max(newest, value);
+					continue;
+				}
+			} catch (NumberFormatException e) {
+				// not part of the time hierarchy, counted as is
+			}
+			bytes += walk(child.toPath());
+		}
+
+		List<Callable<Usage>> units = new ArrayList<Callable<Usage>>();
+		for (final File child : timeDirs) {
+			final boolean newestChild = newestBranch && Long.parseLong(child.getName()) == newest;
+			units.add(new Callable<Usage>() {
+				@Override
+				public Usage call() {
+					return measure(child, level + 1, newestChild, now);
+				}
+			});
+		}
+
+		// only hour directories go to the pool, so that its units never wait for other units
+		List<Usage> usages = level + 1 == TIME_DIRECTORY_LEVELS ? ParallelListing.invokeAll(listingPool, units)
+				: ParallelListing.invokeAll(null, units);
+
+		boolean closed = !newestBranch;
+		for (Usage usage : usages) {
+			bytes += usage.bytes;
+			closed &= usage.closed;
+		}
+		return new Usage(bytes, closed);
+	}
+
+	/** @return total size of the files under a path (files disappearing meanwhile are skipped) */
+	private static long walk(Path path) {
+		final long[] bytes = new long[1];
+
+		try {
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					bytes[0] += attrs.size();
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			// only thrown by the visitor, which never does
+		}
+
+		return bytes[0];
+	}
+
+	/** @return size in the style of du -h (e.g. 4.0K, 132M, 1.2T) */
+	public static String format(long bytes) {
+		double size = bytes / 1024.0;
+		int unit = 0;
+
+		while (size >= 1024 && unit < UNITS.length - 1) {
+			size /= 1024;
+			unit++;
+		}
+
+		return String.format(Locale.ROOT, size < 10 ? "%.1f%s" : "%.0f%s", size, UNITS[unit]);
+	}
+
+	private static class Usage {
+
+		final long bytes;
+
+		final boolean closed;
+
+		Usage(long bytes, boolean closed) {
+			this.bytes = bytes;
+			this.closed = closed;
+		}
+	}
+}
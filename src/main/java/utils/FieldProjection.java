@@ -0,0 +1,451 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Selection of subtrees of a snapshot, given as a comma-separated list of JSON Pointers (e.g.
+ * /fedBuilders/0/rate) or dotted paths (e.g. fedBuilders.0.rate).
+ *
+ * Projecting copies the tokens of an encoded snapshot, skipping everything outside the selected subtrees. The
+ * enclosing objects and arrays of the selected subtrees are kept, so that the result has the same structure and
+ * format as the full snapshot, only with fewer members.
+ *
+ * In reference-prefixed formats, objects are defined once with an "@id" member and referred to elsewhere by a string
+ * with the reference prefix. Projections of whole documents therefore also include the defining subtrees of the
+ * objects referred to from the selection (and from those, in turn), so that every reference of the result can be
+ * resolved.
+ */
+
+public class FieldProjection {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/** member holding the identifier of an object in reference-prefixed formats */
+	private static final String ID_PROPERTY = "@id";
+
+	/** prefix of the string values referring to an object in reference-prefixed formats */
+	private static final String REFERENCE_PREFIX = "ref/";
+
+	private final List<JsonPointer> pointers;
+
+	//canonical form of the selection, identical for equivalent field lists
+	private final String key;
+
+	private FieldProjection(List<JsonPointer> pointers) {
+		this.pointers = pointers;
+
+		TreeSet<String> canonical = new TreeSet<String>();
+		for (JsonPointer pointer : pointers) {
+			canonical.add(pointer.toString());
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String pointer : canonical) {
+			sb.append(sb.length() == 0 ? "" : ",").append(pointer);
+		}
+		this.key = sb.toString();
+	}
+
+	/**
+	 * @return projection of the given fields, or null if no fields are given
+	 * @throws RuntimeException
+	 *             if a field is not a valid JSON Pointer or path
+	 */
+	public static FieldProjection parse(String fields) {
+		if (fields == null || fields.trim().isEmpty()) {
+			return null;
+		}
+
+		List<JsonPointer> pointers = new ArrayList<JsonPointer>();
+		for (String field : fields.split(",")) {
+			field = field.trim();
+			if (field.isEmpty()) {
+				continue;
+			}
+
+			// dotted paths are turned into pointers, escaping as per RFC 6901
+			if (!field.startsWith("/")) {
+				StringBuilder pointer = new StringBuilder();
+				for (String token : field.split("\\.")) {
+					pointer.append('/').append(token.replace("~", "~0").replace("/", "~1"));
+				}
+				field = pointer.toString();
+			}
+
+			try {
+				pointers.add(JsonPointer.compile(field));
+			} catch (IllegalArgumentException e) {
+				throw new RuntimeException("Invalid field: " + field);
+			}
+		}
+
+		if (pointers.isEmpty()) {
+			return null;
+		}
+
+		return new FieldProjection(Collections.unmodifiableList(pointers));
+	}
+
+	/** @return selected fields, in the order given */
+	public List<JsonPointer> getPointers() {
+		return pointers;
+	}
+
+	/** @return canonical form of the selected fields, for caching projections */
+	public String getKey() {
+		return key;
+	}
+
+	/** @return short identifier of the selection, for entity tags */
+	public String getTag() {
+		return "f" + Integer.toHexString(key.hashCode());
+	}
+
+	/**
+	 * Projects an encoded json document, including the objects referred to
+	 */
+	public byte[] project(byte[] json) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+		project(json, jsonFactory, jsonFactory.createGenerator(baos));
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Projects a whole encoded document (of the format of the given factory) to a generator, closing it. The first
+	 * pass over the document selects the fields, and collects the references of the selection and the objects
+	 * defined in the document with the references they contain. If the selection refers to objects it does not
+	 * define, a second pass selects their defining subtrees as well (and those of the objects they refer to, in
+	 * turn).
+	 */
+	public void project(byte[] document, JsonFactory factory, JsonGenerator generator) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+		References references = new References();
+		select(factory.createParser(document), factory.createGenerator(baos), pointers, references);
+
+		List<JsonPointer> selection = references.resolve(pointers);
+		if (selection.size() > pointers.size()) {
+			select(factory.createParser(document), generator, selection, null);
+			return;
+		}
+
+		JsonParser parser = factory.createParser(baos.toByteArray());
+		try {
+			while (parser.nextToken() != null) {
+				generator.copyCurrentEvent(parser);
+			}
+		} finally {
+			generator.close();
+			parser.close();
+		}
+	}
+
+	/** @return pointer to a value, given by the member names and element indexes leading to it */
+	private static JsonPointer pointerTo(List<String> location) {
+		StringBuilder pointer = new StringBuilder();
+		for (String token : location) {
+			pointer.append('/').append(token.replace("~", "~0").replace("/", "~1"));
+		}
+		return JsonPointer.compile(pointer.toString());
+	}
+
+	/**
+	 * Copies the selected tokens from a parser to a generator (of any format), closing both. If nothing is selected,
+	 * an empty object is written. References are not resolved, see {@link #project(byte[], JsonFactory,
+	 * JsonGenerator)}.
+	 */
+	public void project(JsonParser parser, JsonGenerator generator) throws IOException {
+		select(parser, generator, pointers, null);
+	}
+
+	/**
+	 * @param references
+	 *            collects the references and definitions of the document, or null
+	 */
+	private static void select(JsonParser parser, JsonGenerator generator, List<JsonPointer> selection,
+			References references) throws IOException {
+		try {
+			Path path = new Path();
+			if (parser.nextToken() != null) {
+				copy(parser, generator, selection, path, false, references, new HashSet<String>(),
+						new ArrayList<String>());
+			}
+
+			if (!path.selected) {
+				generator.writeStartObject();
+				generator.writeEndObject();
+			}
+		} finally {
+			generator.close();
+			parser.close();
+		}
+	}
+
+	/**
+	 * Copies the subtrees at the given pointers (relative to the current value of the parser), with their enclosing
+	 * objects and arrays, and skips the rest of the value. Enclosing objects and arrays are only written once
+	 * something in them is selected. Skipped values are still read token by token if references are collected.
+	 *
+	 * Selected elements of arrays are not copied through FilteringParserDelegate, which drops the start of selected
+	 * element objects (jackson-core 2.7).
+	 *
+	 * @param copying
+	 *            whether the value is within a selected subtree
+	 * @param contained
+	 *            collects the references found in the value
+	 * @param location
+	 *            member names and element indexes leading to the value, kept while references are collected (the
+	 *            parsing context of the smile parser does not count elements in jackson 2.7)
+	 */
+	private static void copy(JsonParser parser, JsonGenerator generator, List<JsonPointer> pointers, Path path,
+			boolean copying, References references, Set<String> contained, List<String> location)
+			throws IOException {
+		if (!copying) {
+			for (JsonPointer pointer : pointers) {
+				if (pointer.matches()) {
+					path.write(generator);
+					copying = true;
+					break;
+				}
+			}
+		}
+
+		if (copying && references == null) {
+			generator.copyCurrentStructure(parser);
+			return;
+		}
+
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.START_OBJECT) {
+			int start = copying ? -1 : path.open(token);
+			if (copying) {
+				generator.writeStartObject();
+			}
+
+			Set<String> members = references != null ? new HashSet<String>() : contained;
+			String id = null;
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				List<JsonPointer> remaining = Collections.emptyList();
+				if (!copying) {
+					remaining = new ArrayList<JsonPointer>();
+					for (JsonPointer pointer : pointers) {
+						JsonPointer tail = pointer.matchProperty(name);
+						if (tail != null) {
+							remaining.add(tail);
+						}
+					}
+				}
+
+				JsonToken value = parser.nextToken();
+				if (references != null && value == JsonToken.VALUE_STRING && ID_PROPERTY.equals(name)) {
+					id = parser.getText();
+					references.define(id, pointerTo(location), copying);
+				}
+
+				location.add(name);
+				if (copying) {
+					generator.writeFieldName(name);
+					copy(parser, generator, remaining, path, true, references, members, location);
+				} else if (remaining.isEmpty() && references == null) {
+					parser.skipChildren();
+				} else {
+					int member = path.open(name);
+					copy(parser, generator, remaining, path, false, references, members, location);
+					path.close(member, generator);
+				}
+				location.remove(location.size() - 1);
+			}
+
+			if (copying) {
+				generator.writeEndObject();
+			} else {
+				path.close(start, generator);
+			}
+
+			if (references != null) {
+				if (id != null) {
+					references.contain(id, members);
+				}
+				contained.addAll(members);
+			}
+		} else if (token == JsonToken.START_ARRAY) {
+			int start = copying ? -1 : path.open(token);
+			if (copying) {
+				generator.writeStartArray();
+			}
+
+			for (int index = 0; parser.nextToken() != JsonToken.END_ARRAY; index++) {
+				List<JsonPointer> remaining = Collections.emptyList();
+				if (!copying) {
+					remaining = new ArrayList<JsonPointer>();
+					for (JsonPointer pointer : pointers) {
+						JsonPointer tail = pointer.matchElement(index);
+						if (tail != null) {
+							remaining.add(tail);
+						}
+					}
+				}
+
+				location.add(Integer.toString(index));
+				if (!copying && remaining.isEmpty() && references == null) {
+					parser.skipChildren();
+				} else {
+					copy(parser, generator, remaining, path, copying, references, contained, location);
+				}
+				location.remove(location.size() - 1);
+			}
+
+			if (copying) {
+				generator.writeEndArray();
+			} else {
+				path.close(start, generator);
+			}
+		} else {
+			// scalars are only copied when a pointer ends at them, pointers going deeper do not match
+			if (references != null && token == JsonToken.VALUE_STRING && parser.getText().startsWith(REFERENCE_PREFIX)) {
+				contained.add(parser.getText());
+				if (copying) {
+					references.select(parser.getText());
+				}
+			}
+			if (copying) {
+				generator.copyCurrentEvent(parser);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+
+	/**
+	 * References and definitions of objects found in one pass over a document, to widen a selection by the objects
+	 * it refers to
+	 */
+	private static class References {
+
+		/** pointers to the objects defined in the document, by identifier */
+		private final Map<String, JsonPointer> definitions = new HashMap<String, JsonPointer>();
+
+		/** references contained in the subtree of each object defined in the document, by identifier */
+		private final Map<String, Set<String>> contents = new HashMap<String, Set<String>>();
+
+		/** references within the selection */
+		private final Set<String> selected = new HashSet<String>();
+
+		/** identifiers of the objects defined within the selection */
+		private final Set<String> defined = new HashSet<String>();
+
+		void define(String id, JsonPointer pointer, boolean selected) {
+			if (selected) {
+				defined.add(id);
+			}
+			if (!pointer.matches()) { // the document itself is always there
+				definitions.put(id, pointer);
+			}
+		}
+
+		void contain(String id, Set<String> references) {
+			contents.put(id, references);
+		}
+
+		void select(String reference) {
+			selected.add(reference);
+		}
+
+		/**
+		 * @return the given pointers, followed by pointers to the objects referred to from the selection but not
+		 *         defined in it (and to the objects referred to from those, in turn)
+		 */
+		List<JsonPointer> resolve(List<JsonPointer> pointers) {
+			List<JsonPointer> selection = new ArrayList<JsonPointer>(pointers);
+			Set<String> resolved = new HashSet<String>(defined);
+			List<String> pending = new ArrayList<String>(selected);
+
+			while (!pending.isEmpty()) {
+				String id = getIdentifier(pending.remove(pending.size() - 1));
+				if (id == null || !resolved.add(id)) {
+					continue; // strings which only look like references, or resolved already
+				}
+
+				JsonPointer definition = definitions.get(id);
+				if (!selection.contains(definition)) {
+					selection.add(definition);
+				}
+				pending.addAll(contents.get(id));
+			}
+			return selection;
+		}
+
+		/** @return identifier of the object defined in the document a reference points to, or null if none */
+		private String getIdentifier(String reference) {
+			if (definitions.containsKey(reference)) {
+				return reference;
+			}
+			String id = reference.substring(REFERENCE_PREFIX.length());
+			return definitions.containsKey(id) ? id : null;
+		}
+	}
+
+	/** Enclosing objects, arrays and member names of the value being copied, written the first time it is needed */
+	private static class Path {
+
+		private final List<Object> items = new ArrayList<Object>();
+
+		/** number of items written */
+		private int written;
+
+		/** whether anything has been copied */
+		boolean selected;
+
+		/** @return position of the item, to close it */
+		int open(Object item) {
+			items.add(item);
+			return items.size() - 1;
+		}
+
+		void write(JsonGenerator generator) throws IOException {
+			selected = true;
+			for (; written < items.size(); written++) {
+				Object item = items.get(written);
+				if (item == JsonToken.START_OBJECT) {
+					generator.writeStartObject();
+				} else if (item == JsonToken.START_ARRAY) {
+					generator.writeStartArray();
+				} else {
+					generator.writeFieldName((String) item);
+				}
+			}
+		}
+
+		/** Ends an object or array if it was written, and forgets it (or a member name) along with what it encloses */
+		void close(int position, JsonGenerator generator) throws IOException {
+			if (written > position) {
+				Object item = items.get(position);
+				if (item == JsonToken.START_OBJECT) {
+					generator.writeEndObject();
+				} else if (item == JsonToken.START_ARRAY) {
+					generator.writeEndArray();
+				}
+				written = position;
+			}
+			items.subList(position, items.size()).clear();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Computes structural differences between json documents as RFC 6902 JSON Patch documents. Objects are compared
+ * member by member and arrays element by element (trailing elements are added or removed), anything else that
+ * differs is replaced.
+ */
+public class JsonPatch {
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/**
+	 * @return UTF-8 encoded patch array turning the source document into the target document
+	 */
+	public static byte[] diff(byte[] source, byte[] target) throws IOException {
+		JsonNode sourceNode = objectMapper.readTree(source);
+		JsonNode targetNode = objectMapper.readTree(target);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+		JsonGenerator generator = jsonFactory.createGenerator(baos);
+
+		generator.writeStartArray();
+		diff(generator, new StringBuilder(), sourceNode, targetNode);
+		generator.writeEndArray();
+		generator.close();
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Concatenates consecutive patches into one patch (operations are applied in sequence)
+	 */
+	public static byte[] concat(List<byte[]> patches) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write('[');
+
+		boolean first = true;
+		for (byte[] patch : patches) {
+			// strip the enclosing brackets of each (compact) patch array
+			if (patch.length <= 2) {
+				continue;
+			}
+			if (!first) {
+				baos.write(',');
+			}
+			baos.write(patch, 1, patch.length - 2);
+			first = false;
+		}
+
+		baos.write(']');
+		return baos.toByteArray();
+	}
+
+	private static void diff(JsonGenerator generator, StringBuilder path, JsonNode source, JsonNode target)
+			throws IOException {
+
+		if (source.isObject() && target.isObject()) {
+			int length = path.length();
+
+			Iterator<Map.Entry<String, JsonNode>> fields = source.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				appendToken(path, field.getKey());
+
+				JsonNode targetValue = target.get(field.getKey());
+				if (targetValue == null) {
+					writeOperation(generator, "remove", path, null);
+				} else {
+					diff(generator, path, field.getValue(), targetValue);
+				}
+				path.setLength(length);
+			}
+
+			fields = target.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				if (!source.has(field.getKey())) {
+					appendToken(path, field.getKey());
+					writeOperation(generator, "add", path, field.getValue());
+					path.setLength(length);
+				}
+			}
+
+		} else if (source.isArray() && target.isArray()) {
+			int length = path.length();
+			int common = Math.min(source.size(), target.size());
+
+			for (int i = 0; i < common; i++) {
+				path.append('/').append(i);
+				diff(generator, path, source.get(i), target.get(i));
+				path.setLength(length);
+			}
+
+			for (int i = common; i < target.size(); i++) {
+				path.append('/').append(i);
+				writeOperation(generator, "add", path, target.get(i));
+				path.setLength(length);
+			}
+
+			// from the end, so that indices of the remaining elements do not shift
+			for (int i = source.size() - 1; i >= common; i--) {
+				path.append('/').append(i);
+				writeOperation(generator, "remove", path, null);
+				path.setLength(length);
+			}
+
+		} else if (!source.equals(target)) {
+			writeOperation(generator, "replace", path, target);
+		}
+	}
+
+	/** Appends a JSON Pointer reference token, escaping '~' and '/' (RFC 6901) */
+	private static void appendToken(StringBuilder path, String token) {
+		path.append('/');
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if (c == '~') {
+				path.append("~0");
+			} else if (c == '/') {
+				path.append("~1");
+			} else {
+				path.append(c);
+			}
+		}
+	}
+
+	private static void writeOperation(JsonGenerator generator, String op, StringBuilder path, JsonNode value)
+			throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("op", op);
+		generator.writeStringField("path", path.toString());
+		if (value != null) {
+			generator.writeFieldName("value");
+			objectMapper.writeTree(generator, value);
+		}
+		generator.writeEndObject();
+	}
+}
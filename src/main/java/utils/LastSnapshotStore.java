@@ -0,0 +1,201 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the last published snapshot of every setup in a local directory, so that a restarted service can serve it
+ * right away instead of answering "Latest snapshot unknown" until discovery has run. Restored snapshots are marked
+ * as such (see {@link LatestSnapshot#isRestored()}) and replaced by the first snapshot discovery publishes.
+ *
+ * Each setup has one file, replaced atomically at every publication, holding the file name, path and modification
+ * time of the snapshot and its gzip-compressed json as served. Files are written by a single thread of their own, so
+ * that publication (on the discovery threads) does not wait for the disk. Only the newest snapshot waiting to be
+ * written is kept per setup, older ones are dropped.
+ */
+
+public class LastSnapshotStore implements LatestSnapshotListener {
+
+	private static final int MAGIC = 0x4c415354;
+
+	private static final int VERSION = 1;
+
+	private static final String EXTENSION = ".last";
+
+	/** how long pending snapshots may take to be written at shutdown (ms) */
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	private final File dir;
+
+	/** newest snapshot waiting to be written, by setup name */
+	private final ConcurrentMap<String, LatestSnapshot> pending = new ConcurrentHashMap<String, LatestSnapshot>();
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "last-snapshot-writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final Logger logger = Logger.getLogger(LastSnapshotStore.class);
+
+	public LastSnapshotStore(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public void latestSnapshotPublished(DAQSetup setup, LatestSnapshot snapshot) {
+		final String name = setup.getName();
+
+		// a write already queued for the setup will take this snapshot instead
+		if (pending.put(name, snapshot) != null) {
+			return;
+		}
+
+		try {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					LatestSnapshot newest = pending.remove(name);
+					if (newest == null) {
+						return;
+					}
+
+					try {
+						save(name, newest);
+					} catch (IOException e) {
+						logger.warn("Could not persist last snapshot of " + name + ": " + e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(name, snapshot); // shut down
+		}
+	}
+
+	/**
+	 * Stops accepting snapshots, and waits a while for the pending ones to be written
+	 */
+	public void shutdown() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				logger.warn("Last snapshots of " + pending.keySet() + " not persisted before shutdown");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void save(String setup, LatestSnapshot snapshot) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+
+		File file = new File(dir, setup + EXTENSION);
+		File tmp = new File(dir, setup + EXTENSION + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(snapshot.getFileName());
+			out.writeUTF(snapshot.getPath());
+			out.writeLong(snapshot.getLastModified());
+			out.writeInt(snapshot.getJson().length);
+			out.writeInt(snapshot.getGzippedJson().length);
+			out.write(snapshot.getGzippedJson());
+		}
+
+		// readers never see a partially written file
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return last snapshot persisted for a setup, or null if there is none or it cannot be read
+	 */
+	public LatestSnapshot load(String setup) {
+		File file = new File(dir, setup + EXTENSION);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("unknown format");
+			}
+
+			String fileName = in.readUTF();
+			String path = in.readUTF();
+			long lastModified = in.readLong();
+			byte[] json = new byte[in.readInt()];
+			byte[] gzippedJson = new byte[in.readInt()];
+			in.readFully(gzippedJson);
+
+			try (DataInputStream gzin = new DataInputStream(new GZIPInputStream(
+					new ByteArrayInputStream(gzippedJson)))) {
+				gzin.readFully(json);
+			}
+
+			return new LatestSnapshot(fileName, path, lastModified, json, gzippedJson);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not read last snapshot of " + setup + " from " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the persisted last snapshot of the setups which have none yet, if it is still under their snapshot
+	 * directory
+	 *
+	 * @return number of setups restored
+	 */
+	public int restore(List<DAQSetup> setups) {
+		int restored = 0;
+
+		for (DAQSetup setup : setups) {
+			if (setup.getLatestSnapshot() != null) {
+				continue;
+			}
+
+			LatestSnapshot snapshot = load(setup.getName());
+			if (snapshot == null) {
+				continue;
+			}
+
+			// the setup may have been pointed to another snapshot directory meanwhile
+			if (!snapshot.getPath().startsWith(new File(setup.getSnapshotPath()).getAbsolutePath() + File.separator)) {
+				logger.info("Not restoring last snapshot of " + setup.getName() + ", not under "
+						+ setup.getSnapshotPath() + " anymore");
+				continue;
+			}
+
+			setup.setLatestSnapshot(snapshot);
+			restored++;
+			logger.info("Restored last snapshot of " + setup.getName() + ": " + snapshot.getFileName());
+		}
+
+		return restored;
+	}
+}
@@ -0,0 +1,80 @@
+package utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, recorded without locks or allocation so that it can sit on the hot paths,
+ * and exposed in the Prometheus text format (cumulative buckets, sum and count in seconds)
+ */
+
+public class LatencyHistogram {
+
+	/** upper bounds of the buckets (s), from sub-millisecond cache hits to decodes of the largest snapshots */
+	private static final double[] BOUNDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+			5, 10, 30 };
+
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+	static {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+		}
+	}
+
+	private final String name;
+
+	//label set of this histogram, e.g. endpoint="getsnapshot",mode="latest" (empty if none)
+	private final String labels;
+
+	//observations per bucket, the last one beyond the largest bound (not cumulative)
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+	private final LongAdder sumNanos = new LongAdder();
+
+	public LatencyHistogram(String name, String labels) {
+		this.name = name;
+		this.labels = labels;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/** Records the time elapsed since a {@link System#nanoTime()} reading */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		sumNanos.add(nanos);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Appends the samples of this histogram in the Prometheus text format (without HELP and TYPE lines, shared by all
+	 * histograms of the same name). Concurrent recording may make the count differ slightly from the sum.
+	 */
+	public void write(StringBuilder sb) {
+		String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+		long cumulative = 0;
+
+		for (int i = 0; i < BOUNDS.length; i++) {
+			cumulative += buckets[i].sum();
+			sb.append(name).append("_bucket").append(prefix).append("le=\"").append(BOUNDS[i]).append("\"} ")
+					.append(cumulative).append('\n');
+		}
+		cumulative += buckets[BOUNDS.length].sum();
+		sb.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+
+		String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+		sb.append(name).append("_sum").append(suffix).append(sumNanos.sum() / 1e9).append('\n');
+		sb.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+	}
+}
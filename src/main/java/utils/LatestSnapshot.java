@@ -0,0 +1,286 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Latest snapshot of a setup, encoded once when it is discovered so that requests only have to copy bytes. The json
+ * payload is UTF-8 encoded and also kept gzip-compressed.
+ *
+ * Each snapshot also carries JSON Patch documents from the last few snapshots published before it, so that clients
+ * which already have one of them can download only the difference. A patch is computed when it is first requested,
+ * from the compressed json of both snapshots, and then shared by the following snapshots.
+ *
+ * Projections of selected fields are computed on first request and kept with the snapshot, so they are dropped
+ * together with it when the next snapshot is published.
+ *
+ * Instances are otherwise immutable: the byte arrays are shared with all readers and must never be modified.
+ */
+
+public class LatestSnapshot {
+
+	//name of the smile file this snapshot was decoded from
+	private final String fileName;
+
+	//absolute path of the same file, for clients reading the stored encoding as is
+	private final String path;
+
+	//unix timestamp (ms) in the snapshot file name
+	private final long timestamp;
+
+	//modification time of the snapshot file
+	private final long lastModified;
+
+	//time this snapshot was decoded and encoded, i.e. just before publication
+	private final long discoveredAt;
+
+	//identifies this snapshot among all snapshots of the setup (used as HTTP entity tag)
+	private final String version;
+
+	//snapshot as UTF-8 encoded json consumable by clients
+	private final byte[] json;
+
+	//same json, gzip-compressed
+	private final byte[] gzippedJson;
+
+	//true if persisted by a previous instance of the service and not yet confirmed by discovery
+	private final boolean restored;
+
+	//patches (computed on demand) between consecutive previous snapshots, oldest first, the last one leading to this
+	//snapshot
+	private final List<Delta> deltas;
+
+	//encoded projections of this snapshot, by projection key
+	private final ConcurrentMap<String, byte[]> projections = new ConcurrentHashMap<String, byte[]>();
+
+	//number of previous snapshots a patch can be based on
+	private static final int MAX_DELTAS = 10;
+
+	//number of distinct projections kept per snapshot, further ones are computed for every request
+	private static final int MAX_PROJECTIONS = 64;
+
+	private static final Logger logger = Logger.getLogger(LatestSnapshot.class);
+
+	public LatestSnapshot(File file, byte[] json) throws IOException {
+		this(file, json, null);
+	}
+
+	/**
+	 * @param previous
+	 *            snapshot published before this one for the same setup, if any, to compute patches from
+	 */
+	public LatestSnapshot(File file, byte[] json, LatestSnapshot previous) throws IOException {
+		this.fileName = file.getName();
+		this.path = file.getAbsolutePath();
+		this.timestamp = Long.parseLong(fileName.split("\\.")[0]);
+		this.lastModified = file.lastModified();
+		this.version = timestamp + "-" + Long.toHexString(lastModified);
+		this.json = json;
+		this.gzippedJson = gzip(json);
+		this.deltas = extendDeltas(previous);
+		this.discoveredAt = System.currentTimeMillis();
+		this.restored = false;
+	}
+
+	/**
+	 * Snapshot restored from the {@link LastSnapshotStore}, served until discovery publishes the latest one
+	 */
+	LatestSnapshot(String fileName, String path, long lastModified, byte[] json, byte[] gzippedJson) {
+		this.fileName = fileName;
+		this.path = path;
+		this.timestamp = Long.parseLong(fileName.split("\\.")[0]);
+		this.lastModified = lastModified;
+		this.version = timestamp + "-" + Long.toHexString(lastModified);
+		this.json = json;
+		this.gzippedJson = gzippedJson;
+		this.deltas = Collections.emptyList();
+		this.discoveredAt = System.currentTimeMillis();
+		this.restored = true;
+	}
+
+	private List<Delta> extendDeltas(LatestSnapshot previous) {
+		if (previous == null) {
+			return Collections.emptyList();
+		}
+
+		List<Delta> ret = new ArrayList<Delta>(MAX_DELTAS);
+		int first = Math.max(0, previous.deltas.size() - MAX_DELTAS + 1);
+		ret.addAll(previous.deltas.subList(first, previous.deltas.size()));
+		ret.add(new Delta(previous, this));
+
+		return Collections.unmodifiableList(ret);
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 8 + 64);
+		GZIPOutputStream gzos = new GZIPOutputStream(baos, 65536);
+		gzos.write(bytes);
+		gzos.close();
+		return baos.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 8);
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes), 65536)) {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getDiscoveredAt() {
+		return discoveredAt;
+	}
+
+	/** @return true if this snapshot was persisted by a previous instance of the service, i.e. it may be stale */
+	public boolean isRestored() {
+		return restored;
+	}
+
+	/** @return strong validator of this snapshot, built from the file name timestamp and modification time */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Tells whether this snapshot is newer than the one a client reports to have
+	 * 
+	 * @param after
+	 *            version (or entity tag) of a previous snapshot, or a unix timestamp in ms
+	 */
+	public boolean isNewerThan(String after) {
+		String tag = after.trim();
+		if (tag.startsWith("W/")) {
+			tag = tag.substring(2);
+		}
+		tag = tag.replace("\"", "");
+
+		int separator = tag.indexOf('-');
+		try {
+			if (separator == -1) {
+				return timestamp > Long.parseLong(tag);
+			}
+
+			// entity tags of other representations (format, fields, encoding) append suffixes to the version
+			int end = tag.indexOf('-', separator + 1);
+			String tagVersion = end == -1 ? tag : tag.substring(0, end);
+
+			// a rewritten file keeps its timestamp but changes version
+			return timestamp >= Long.parseLong(tag.substring(0, separator)) && !tagVersion.equals(version);
+		} catch (NumberFormatException e) {
+			return true; // unknown reference, anything is newer
+		}
+	}
+
+	/**
+	 * @param baseVersion
+	 *            version of a snapshot previously published for the same setup
+	 * @return UTF-8 encoded JSON Patch turning that snapshot into this one, or null if the base is unknown or too old
+	 */
+	public byte[] getPatchSince(String baseVersion) {
+		for (int i = 0; i < deltas.size(); i++) {
+			if (deltas.get(i).baseVersion.equals(baseVersion)) {
+				try {
+					if (i == deltas.size() - 1) {
+						return deltas.get(i).getPatch();
+					}
+
+					List<byte[]> patches = new ArrayList<byte[]>(deltas.size() - i);
+					for (Delta delta : deltas.subList(i, deltas.size())) {
+						patches.add(delta.getPatch());
+					}
+					return JsonPatch.concat(patches);
+				} catch (IOException | RuntimeException e) {
+					logger.warn("Could not compute patch from snapshot " + baseVersion + " to " + fileName, e);
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return json of the selected fields only (shared, must not be modified)
+	 */
+	public byte[] getProjection(FieldProjection projection) throws IOException {
+		byte[] projected = projections.get(projection.getKey());
+
+		if (projected == null) {
+			projected = projection.project(json);
+			if (projections.size() < MAX_PROJECTIONS) {
+				projections.putIfAbsent(projection.getKey(), projected);
+			}
+		}
+
+		return projected;
+	}
+
+	/** @return UTF-8 encoded json (shared, do not modify) */
+	public byte[] getJson() {
+		return json;
+	}
+
+	/** @return gzip-compressed UTF-8 encoded json (shared, do not modify) */
+	public byte[] getGzippedJson() {
+		return gzippedJson;
+	}
+
+	/** Patch from one snapshot to the next one published, computed when first requested */
+	private static class Delta {
+
+		final String baseVersion;
+
+		//compressed json of both snapshots, dropped once the patch is computed (guarded by this)
+		private byte[] gzippedBase;
+
+		private byte[] gzippedTarget;
+
+		private byte[] patch;
+
+		Delta(LatestSnapshot base, LatestSnapshot target) {
+			this.baseVersion = base.version;
+			this.gzippedBase = base.gzippedJson;
+			this.gzippedTarget = target.gzippedJson;
+		}
+
+		synchronized byte[] getPatch() throws IOException {
+			if (patch == null) {
+				patch = JsonPatch.diff(gunzip(gzippedBase), gunzip(gzippedTarget));
+				gzippedBase = null;
+				gzippedTarget = null;
+			}
+			return patch;
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package utils;
+
+/**
+ * Receives every latest snapshot published through {@link SetupManager#updateLatestSnapshot(String, LatestSnapshot)}
+ */
+
+public interface LatestSnapshotListener {
+
+	/**Called by the discovery thread right after publication, so implementations must return quickly*/
+	void latestSnapshotPublished(DAQSetup setup, LatestSnapshot snapshot);
+}
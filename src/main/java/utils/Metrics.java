@@ -0,0 +1,112 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the snapshot pipeline, recorded where the work is done and exposed by the
+ * metrics endpoint. All series are created here once, so that recording them is only an addition.
+ */
+
+public class Metrics {
+
+	private static final List<LatencyHistogram> histograms = new ArrayList<LatencyHistogram>();
+
+	private static final String DISCOVERY = "daqsnapshot_discovery_duration_seconds";
+
+	private static final String DECODE = "daqsnapshot_decode_duration_seconds";
+
+	private static final String ENCODE = "daqsnapshot_encode_duration_seconds";
+
+	private static final String REQUEST = "daqsnapshot_request_duration_seconds";
+
+	private static final String TREND_INGEST = "daqsnapshot_trend_ingest_duration_seconds";
+
+	private static final String TASK = "daqsnapshot_task_duration_seconds";
+
+	/** latest snapshot discovery of one setup (listing, decoding, encoding and patching) */
+	public static final LatencyHistogram discovery = histogram(DISCOVERY, "");
+
+	/** SMILE snapshot files deserialized */
+	public static final LatencyHistogram decode = histogram(DECODE, "");
+
+	/** snapshots serialized to json */
+	public static final LatencyHistogram encode = histogram(ENCODE, "");
+
+	/** getsnapshot requests served from the latest snapshot (waits of long-poll requests excluded) */
+	public static final LatencyHistogram latestRequests = histogram(REQUEST, "endpoint=\"getsnapshot\",mode=\"latest\"");
+
+	/** getsnapshot requests with a time query */
+	public static final LatencyHistogram timeRequests = histogram(REQUEST, "endpoint=\"getsnapshot\",mode=\"time\"");
+
+	/** getsnapshot requests answered with an error */
+	public static final LatencyHistogram failedRequests = histogram(REQUEST, "endpoint=\"getsnapshot\",mode=\"error\"");
+
+	/** getsnapshots requests, until the last snapshot of the range has been sent */
+	public static final LatencyHistogram rangeRequests = histogram(REQUEST, "endpoint=\"getsnapshots\",mode=\"range\"");
+
+	/** gettrend requests */
+	public static final LatencyHistogram trendRequests = histogram(REQUEST, "endpoint=\"gettrend\",mode=\"range\"");
+
+	/** trend fields of one snapshot extracted and appended (published or back-filled) */
+	public static final LatencyHistogram trendIngest = histogram(TREND_INGEST, "");
+
+	public static final LatencyHistogram setupDetection = histogram(TASK, "task=\"setup_detection\"");
+
+	public static final LatencyHistogram diskUsage = histogram(TASK, "task=\"disk_usage\"");
+
+	public static final LatencyHistogram indexUpdate = histogram(TASK, "task=\"snapshot_index\"");
+
+	/** latest snapshots published (i.e. newer snapshots found by discovery) */
+	public static final LongAdder published = new LongAdder();
+
+	/** discoveries which failed (e.g. snapshot file which could not be decoded) */
+	public static final LongAdder discoveryFailures = new LongAdder();
+
+	/** requests refused because the pool of their class was saturated */
+	public static final LongAdder rejectedRequests = new LongAdder();
+
+	/** requests abandoned at their deadline, queued or being served */
+	public static final LongAdder expiredRequests = new LongAdder();
+
+	private static LatencyHistogram histogram(String name, String labels) {
+		LatencyHistogram histogram = new LatencyHistogram(name, labels);
+		histograms.add(histogram);
+		return histogram;
+	}
+
+	/** Appends all counters and histograms in the Prometheus text format */
+	public static void write(StringBuilder sb) {
+		writeCounter(sb, "daqsnapshot_published_total", "Latest snapshots published", published.sum());
+		writeCounter(sb, "daqsnapshot_discovery_failures_total", "Latest snapshot discoveries which failed",
+				discoveryFailures.sum());
+		writeCounter(sb, "daqsnapshot_rejected_requests_total", "Requests refused with 503 because their pool was full",
+				rejectedRequests.sum());
+		writeCounter(sb, "daqsnapshot_expired_requests_total", "Requests abandoned at their deadline",
+				expiredRequests.sum());
+
+		writeHistograms(sb, DISCOVERY, "Latest snapshot discovery of one setup");
+		writeHistograms(sb, DECODE, "Deserialization of SMILE snapshot files");
+		writeHistograms(sb, ENCODE, "Serialization of snapshots to json");
+		writeHistograms(sb, TREND_INGEST, "Recording of the trend fields of one snapshot");
+		writeHistograms(sb, REQUEST, "Time spent serving requests, by endpoint and mode");
+		writeHistograms(sb, TASK, "Duration of periodic tasks");
+	}
+
+	public static void writeCounter(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void writeHistograms(StringBuilder sb, String name, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" histogram\n");
+		for (LatencyHistogram histogram : histograms) {
+			if (histogram.getName().equals(name)) {
+				histogram.write(sb);
+			}
+		}
+	}
+}
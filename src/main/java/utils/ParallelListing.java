@@ -0,0 +1,59 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs directory listings or walks on the bounded listing pool of the service, waiting for all of them. Units must
+ * not submit further units to the pool, so that the pool cannot run out of threads waiting for each other.
+ */
+
+final class ParallelListing {
+
+	private ParallelListing() {
+	}
+
+	/**
+	 * @param pool
+	 *            listing pool, or null to run the units on the calling thread
+	 * @return results of the units, in their order
+	 * @throws RuntimeException
+	 *             thrown by a unit, or if interrupted while waiting
+	 */
+	static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> units) {
+		List<T> results = new ArrayList<T>(units.size());
+
+		try {
+			if (pool == null) {
+				for (Callable<T> unit : units) {
+					results.add(unit.call());
+				}
+				return results;
+			}
+
+			for (Future<T> future : pool.invokeAll(units)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while listing directories");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of DAQAggregator processes: the processes launched by the service (start script, kill) are waited for
+ * on a reaper thread, so that they do not stay around as zombies and their exit is noticed as soon as it happens, and
+ * the state of the aggregators listed in the pid index file is read from /proc instead of forking ps.
+ *
+ * Aggregators are started in the background by the start script, so they are not children of the service and can
+ * only be looked up by pid. Where there is no /proc (not Linux), ps is used as before.
+ */
+
+public class ProcessSupervisor {
+
+	private static final File PROC = new File("/proc");
+
+	/** launched processes which have not exited yet, by description */
+	private final Map<Process, String> children = new ConcurrentHashMap<Process, String>();
+
+	/** one thread per launched process, waiting for its exit (launched processes are short-lived) */
+	private final ExecutorService reaper = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "process-reaper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final Logger logger = Logger.getLogger(ProcessSupervisor.class);
+
+	/**
+	 * Starts a process whose output goes to the output of the service, with no pipes left open, and reaps it once it
+	 * exits
+	 *
+	 * @param description
+	 *            what the process does, for logging
+	 */
+	public Process launch(ProcessBuilder builder, final String description) throws IOException {
+		final Process process = builder.inheritIO().start();
+		children.put(process, description);
+
+		reaper.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int exitValue = process.waitFor();
+					if (exitValue == 0) {
+						logger.info("Process for " + description + " completed");
+					} else {
+						logger.warn("Process for " + description + " exited with status " + exitValue);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					children.remove(process);
+				}
+			}
+		});
+
+		return process;
+	}
+
+	/** @return number of launched processes which have not exited yet */
+	public int getRunningChildren() {
+		return children.size();
+	}
+
+	/**
+	 * @return true if a java process (i.e. an aggregator) is running with the given pid
+	 */
+	public boolean isAggregatorRunning(long pid) {
+		if (!PROC.isDirectory()) {
+			return isAggregatorRunningByPs(pid);
+		}
+
+		File process = new File(PROC, Long.toString(pid));
+		try {
+			// fields after the command name, which is in parentheses and may contain anything
+			String stat = new String(Files.readAllBytes(new File(process, "stat").toPath()), StandardCharsets.UTF_8);
+			String state = stat.substring(stat.lastIndexOf(')') + 1).trim();
+			if (state.startsWith("Z") || state.startsWith("X")) {
+				return false; // exited, not reaped yet
+			}
+
+			// arguments separated by NUL characters
+			String cmdline = new String(Files.readAllBytes(new File(process, "cmdline").toPath()),
+					StandardCharsets.UTF_8);
+			return cmdline.contains("java");
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			// process exiting while being read
+			logger.debug("Could not read process " + pid + ": " + e);
+			return false;
+		}
+	}
+
+	private boolean isAggregatorRunningByPs(long pid) {
+		try {
+			Process p = new ProcessBuilder("ps", "-p", Long.toString(pid)).redirectErrorStream(true).start();
+
+			StringBuilder pInfo = new StringBuilder();
+			try (BufferedReader ips = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				String line;
+				while ((line = ips.readLine()) != null) {
+					pInfo.append(line);
+				}
+			}
+			p.waitFor();
+
+			return pInfo.indexOf(Long.toString(pid)) >= 0 && pInfo.indexOf("java") >= 0;
+		} catch (IOException e) {
+			logger.warn("Could not query process " + pid + ": " + e);
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** Stops waiting for launched processes (they are not killed) */
+	public void shutdown() {
+		reaper.shutdownNow();
+	}
+}
@@ -1,10 +1,11 @@
 package utils;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
@@ -23,20 +25,37 @@ import org.apache.log4j.Logger;
 
 public class SetupManager{
 
-	/**holds setups by *normalized* name
+	/**holds setups by *normalized* name (only accessed by the detection, under the lock of this manager)
 	 */
 	private Map<String, DAQSetup> setups; //never flush this map
 
+	/**immutable copy of the setups, published by the detection for lock-free reads*/
+	private volatile Registry registry = new Registry(new HashMap<String, DAQSetup>());
+
 	private String configFilesDirPath; //this is the DAQAggregator config file
 
 	private String pidLogFile;
 
+	private Map<String, ConfigFile> configFiles = new HashMap<String, ConfigFile>(); //parsed config files by path, reparsed only when changed
+
+	private long pidLogOffset; //length of the pid log read so far (the log is append-only)
+
+	private Properties newestPids = new Properties(); //newest pid of each setup in the pid log read so far
+
+	private boolean skippingPidLogLine; //the pid log is read past an overlong line, up to its end
+
+	private static final int PID_LOG_CHUNK = 1024 * 1024; //bytes of the pid log read at once
+
 	private Set<String> maskedSetups; //setups with missing DAQAggr config files, or without valid ".properties" suffix
 
 	private Set<String> revisitedSetups; //contains only setups encountered in current iteration (flushed at each iteration, unlike the map of setups)
 
 	private String startScript; //script to start DAQAggregator processes and catch their pids
 
+	private ProcessSupervisor processSupervisor = new ProcessSupervisor(); //launches and reaps processes, looks up aggregators
+
+	private List<LatestSnapshotListener> latestSnapshotListeners = new CopyOnWriteArrayList<LatestSnapshotListener>();
+
 	private static final Logger logger = Logger.getLogger(SetupManager.class);
 
 
@@ -82,6 +101,8 @@ public class SetupManager{
 			if (dir.isDirectory()){
 				File [] configs = dir.listFiles();
 
+				Map<String, ConfigFile> scannedFiles = new HashMap<String, ConfigFile>();
+
 				for (File f : configs){
 					//skipping duplicate files that text editors may put in the directory as backups
 					if (f.getName().endsWith("~")){
@@ -94,13 +115,17 @@ public class SetupManager{
 						continue;
 					}
 
-					//DAQAggregator properties file for this setup
-					Properties DaqAggregatorInfo = Helpers.loadProps(f.getAbsolutePath());
+					//DAQAggregator properties file for this setup, parsed again only if modified since the previous scan
+					ConfigFile config = this.configFiles.get(f.getAbsolutePath());
+					if (config == null || !config.isUnchanged(f)){
+						config = new ConfigFile(f);
+					}
+					scannedFiles.put(f.getAbsolutePath(), config);
 
 					String setupName = f.getName().substring(0, f.getName().indexOf(".")); //takes setup name from config file name
 					setupName = setupName.toLowerCase().trim(); //normalization to be used with map/set
-					String setupSnapshotPath = DaqAggregatorInfo.getProperty("persistence.snapshot.dir");
-					String setupRemark = DaqAggregatorInfo.getProperty("remark");
+					String setupSnapshotPath = config.snapshotPath;
+					String setupRemark = config.remark;
 
 					//still valid setup revisited
 					this.revisitedSetups.add(setupName);
@@ -127,6 +152,8 @@ public class SetupManager{
 
 				}
 
+				this.configFiles = scannedFiles; //forgetting removed files
+
 			}else{
 				throw new RuntimeException();
 			}
@@ -146,17 +173,34 @@ public class SetupManager{
 		}
 	}
 
-	/**Sets path to latest snapshot at all setup objects (it should not include the actual computation)*/
-	public synchronized void updateLatestSnapshot(Map <String, String> results){ //thread safety!
-		//key: setup name, value: path to file smile
+	/**Sets latest snapshot at one setup object (it should not include the actual computation). Not synchronized, so
+	 * that publication does not wait for a running setup detection: each setup is updated by one discovery at a time.*/
+	public void updateLatestSnapshot(String setupName, LatestSnapshot snapshot){
+		DAQSetup setup = this.registry.byName.get(setupName);
+		if (setup == null || snapshot == null){
+			return;
+		}
 
-		for (Map.Entry<String, String> e: results.entrySet()){
-			if (e.getValue() != null){
-				this.setups.get(e.getKey()).setLatestSnapshot(e.getValue());
-			}
+		setup.setLatestSnapshot(snapshot);
+
+		for (LatestSnapshotListener listener : latestSnapshotListeners){
+			listener.latestSnapshotPublished(setup, snapshot);
 		}
 	}
 
+	/**Sets the time index at one setup object, once it has been built*/
+	public void updateSnapshotIndex(String setupName, SnapshotIndex index){
+		DAQSetup setup = this.registry.byName.get(setupName);
+		if (setup != null){
+			setup.setSnapshotIndex(index);
+		}
+	}
+
+	/**Registers a listener to be notified of every latest snapshot published from now on*/
+	public void addLatestSnapshotListener(LatestSnapshotListener listener){
+		latestSnapshotListeners.add(listener);
+	}
+
 	/**Scans all indexed-by-setupName Aggregator processes and discovers their process state*/
 	private void scanDataAggregationProcesses(){
 
@@ -165,7 +209,7 @@ public class SetupManager{
 			/**The pid file is appended from top to bottom and Properties class is based on hashmaps.
 			 * Thanks to this, properties will always contain one entry per setup, the newest one.
 			 * */
-			Properties setupEntries = Helpers.loadProps(this.pidLogFile);
+			Properties setupEntries = readPidLog();
 
 			for (String setupNameForNewestPid : setupEntries.stringPropertyNames()){
 				//setupNameForNewestPid is the string as in the pid log file (do not normalize it, only use normalized copies when accessing map/set by setup name)
@@ -178,18 +222,7 @@ public class SetupManager{
 					this.setups.get(setupNameForNewestPid.toLowerCase().trim()).setLastPid(pid);
 
 					//discover process status by this pid
-					Process p = Runtime.getRuntime().exec("ps -p "+pid);
-
-					BufferedReader ips =  new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-					String line;
-					String pInfo ="";
-					while ((line = ips.readLine()) != null) {
-						pInfo+=line; 
-					}
-					ips.close();
-
-					if (pInfo.contains(Long.toString(pid))&&pInfo.contains("java")){
+					if (processSupervisor.isAggregatorRunning(pid)){
 						this.setups.get(setupNameForNewestPid.toLowerCase().trim()).setProcessStatus("running");
 					}else{
 						this.setups.get(setupNameForNewestPid.toLowerCase().trim()).setProcessStatus("not_running");
@@ -197,12 +230,78 @@ public class SetupManager{
 				}
 			}
 
-		}catch(RuntimeException|IOException e){
+		}catch(RuntimeException e){
 			logger.error("Failed to scan Aggregator processes");
 			e.printStackTrace();
 		}
 	}
 
+	/**Reads the lines appended to the pid log since the previous scan, from where it stopped, into the newest pids
+	 * @return newest pid of each setup in the log*/
+	private Properties readPidLog(){
+		File log = new File(this.pidLogFile);
+		long length = log.length();
+
+		//log truncated or replaced, so read from the start again
+		if (length < this.pidLogOffset){
+			logger.info("Pid log "+this.pidLogFile+" has shrunk, reading it from the start");
+			this.pidLogOffset = 0;
+			this.newestPids = new Properties();
+			this.skippingPidLogLine = false;
+		}
+
+		if (length == this.pidLogOffset){
+			return this.newestPids;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(log, "r")){
+			byte[] chunk = new byte[(int) Math.min(length - this.pidLogOffset, PID_LOG_CHUNK)];
+
+			while (this.pidLogOffset < length){
+				int size = (int) Math.min(length - this.pidLogOffset, chunk.length);
+				raf.seek(this.pidLogOffset);
+				raf.readFully(chunk, 0, size);
+
+				//rest of an overlong line, dropped up to its end
+				if (this.skippingPidLogLine){
+					int newline = 0;
+					while (newline < size && chunk[newline] != '\n'){
+						newline++;
+					}
+					this.pidLogOffset += Math.min(newline + 1, size);
+					this.skippingPidLogLine = newline == size;
+					continue;
+				}
+
+				//only complete lines, a line being appended is read at the next scan
+				int end = size;
+				while (end > 0 && chunk[end - 1] != '\n'){
+					end--;
+				}
+				if (end == 0){
+					//the chunk is only smaller than that if the rest of the file fits, i.e. a line is being written
+					if (size == PID_LOG_CHUNK){
+						logger.warn("Skipping line longer than "+PID_LOG_CHUNK+" bytes at offset "+this.pidLogOffset
+								+" of pid log "+this.pidLogFile);
+						this.pidLogOffset += size;
+						this.skippingPidLogLine = true;
+						continue;
+					}
+					break;
+				}
+
+				Properties appended = new Properties();
+				appended.load(new ByteArrayInputStream(chunk, 0, end));
+				this.newestPids.putAll(appended); //entries appended later override earlier ones
+				this.pidLogOffset += end;
+			}
+		}catch(IOException e){
+			logger.error("Could not read pid log "+this.pidLogFile+": "+e);
+		}
+
+		return this.newestPids;
+	}
+
 	/**Method to ensure atomicity of the three-step setup discovery (background must call this method only)*/
 	public synchronized void detectSetups(){ //thread safety!
 		maskedSetups = new HashSet<String>();
@@ -210,43 +309,52 @@ public class SetupManager{
 		scanDeclaredConfigurations();
 		scanDataAggregationProcesses();
 		setMaskedSetups();
+
+		if (!this.registry.byName.keySet().equals(this.setups.keySet())){
+			this.registry = new Registry(this.setups);
+		}
 	}
 
-	/**Method for listing of all setups, irrespectively of status*/
+	/**Method for listing of all setups, irrespectively of status (unmodifiable, in display order)*/
 	public List<DAQSetup> getAvailableSetups(){
+		return this.registry.ordered;
+	}
+
+	/**Orders setups for display: cdaq first, then daqval setups, then all others*/
+	private static List<DAQSetup> orderSetups(Map<String, DAQSetup> setups){
 		List<DAQSetup> list = new ArrayList<DAQSetup>();
 
 		Set<String> includedSetups = new HashSet<String>();
 
 		//impl. priority
 
-		for (String sName : this.setups.keySet()){
+		for (String sName : setups.keySet()){
 			if (sName.equals("cdaq")){
-				list.add(this.setups.get(sName));
+				list.add(setups.get(sName));
 				includedSetups.add(sName);
 			}else{
 				continue;
 			}
 		}
 
-		for (String sName : this.setups.keySet()){
+		for (String sName : setups.keySet()){
 			if (includedSetups.contains(sName)){
 				continue;
 			}
 
 			if (sName.contains("daqval")){
-				list.add(this.setups.get(sName));
+				list.add(setups.get(sName));
 				includedSetups.add(sName);
 			}else{
 				continue;
 			}
 		}
 
-		for (String sName : this.setups.keySet()){
+		for (String sName : setups.keySet()){
 			if (includedSetups.contains(sName)){
 				continue;
 			}else{
-				list.add(this.setups.get(sName));
+				list.add(setups.get(sName));
 				includedSetups.add(sName);
 			}
 		}
@@ -257,11 +365,7 @@ public class SetupManager{
 	/**Method to get one setup, if existing, or null otherwise*/
 	public DAQSetup getSetupByName(String term){
 		term = term.toLowerCase().trim(); //normalization
-		if (this.setups.containsKey(term)){
-			return this.setups.get(term);
-		}else{
-			return null;
-		}
+		return this.registry.byName.get(term);
 	}
 
 	private String getSetupInfoString(){
@@ -323,7 +427,7 @@ public class SetupManager{
 
 			//wrap in process builder
 			ProcessBuilder builder = new ProcessBuilder("sh", this.startScript, DAQAggregatorBinary, DAQAggregatorConfigFile, name, DAQAggregatorLogfile);
-			builder.start();
+			processSupervisor.launch(builder, "start of setup "+name);
 
 			logger.info("Started setup: "+name+" with executable: "+DAQAggregatorBinary+" (should be picked up by front-end in a while)");
 			success = true;
@@ -343,7 +447,7 @@ public class SetupManager{
 
 			//wrap in process builder
 			ProcessBuilder builder = new ProcessBuilder("kill", String.valueOf(this.setups.get(name).getLastPid()));
-			builder.start();
+			processSupervisor.launch(builder, "stop of setup "+name);
 
 			logger.info("Stopped setup: "+name+" (should be picked up by front-end in a while)");
 			success = true;
@@ -354,4 +458,49 @@ public class SetupManager{
 
 		return success;
 	}
+
+	/**Stops supervising launched processes, when the service is shut down*/
+	public void shutdown(){
+		processSupervisor.shutdown();
+	}
+
+	/**Values read from a DAQAggregator config file, with the size and modification time of the file they were read at*/
+	private static class ConfigFile{
+
+		final long lastModified;
+
+		final long length;
+
+		final String snapshotPath;
+
+		final String remark;
+
+		ConfigFile(File file){
+			//read before parsing, so that a change while parsing is noticed at the next scan
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+
+			Properties DaqAggregatorInfo = Helpers.loadProps(file.getAbsolutePath());
+			this.snapshotPath = DaqAggregatorInfo.getProperty("persistence.snapshot.dir");
+			this.remark = DaqAggregatorInfo.getProperty("remark");
+		}
+
+		boolean isUnchanged(File file){
+			return file.lastModified() == this.lastModified && file.length() == this.length;
+		}
+	}
+
+	/**Setups by name and in display order, as detected at one point in time (setups are only ever added, so a
+	 * registry is only rebuilt when a new one is detected)*/
+	private static class Registry{
+
+		final Map<String, DAQSetup> byName;
+
+		final List<DAQSetup> ordered;
+
+		Registry(Map<String, DAQSetup> setups){
+			this.byName = Collections.unmodifiableMap(new HashMap<String, DAQSetup>(setups));
+			this.ordered = Collections.unmodifiableList(orderSetups(setups));
+		}
+	}
 }
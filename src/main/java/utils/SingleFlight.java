@@ -0,0 +1,63 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent executions of the same work: while the work for a key is in flight, further callers with the
+ * same key wait for it and get the same result (or exception) instead of doing the work again. Once finished, the
+ * work is forgotten, so that results are not cached here.
+ */
+
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * Runs the work on the calling thread, unless work for the same key is in flight already, in which case its
+	 * result is awaited instead
+	 *
+	 * @throws IOException
+	 *             thrown by the work (or interruption of the wait), runtime exceptions are thrown as they are
+	 */
+	public V execute(K key, Callable<V> work) throws IOException {
+		FutureTask<V> flight = new FutureTask<V>(work);
+		FutureTask<V> inFlight = flights.putIfAbsent(key, flight);
+
+		if (inFlight == null) {
+			try {
+				flight.run();
+			} finally {
+				flights.remove(key, flight);
+			}
+			inFlight = flight;
+		}
+
+		try {
+			return inFlight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + key);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/** @return number of works in flight */
+	public int size() {
+		return flights.size();
+	}
+}
@@ -0,0 +1,168 @@
+package utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of encoded snapshots (response bytes), bounded by the total number of bytes held. Entries are keyed by
+ * snapshot file and encoding, so that all requests resolving to the same file share one entry.
+ *
+ * Eviction follows a segmented LRU policy: new entries go to a probation segment and are promoted to a protected
+ * segment when requested again. Snapshots looked at once (e.g. a single replay step) are therefore evicted before
+ * those requested repeatedly (e.g. the minutes around an incident which many people are scrubbing through).
+ */
+
+public class SnapshotCache {
+
+	/** share of the capacity reserved for the protected segment (%) */
+	private static final int PROTECTED_SHARE = 80;
+
+	private final long maxBytes;
+
+	private final long maxProtectedBytes;
+
+	/** larger entries are not cached at all, as they would flush too much of the cache */
+	private final long maxEntryBytes;
+
+	//entries requested once, least recently used first (guarded by this, moved to the end when used)
+	private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<String, byte[]>(64);
+
+	//entries requested more than once, least recently used first (guarded by this, moved to the end when used)
+	private final LinkedHashMap<String, byte[]> protectedSegment = new LinkedHashMap<String, byte[]>(64);
+
+	private long probationBytes;
+
+	private long protectedBytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	public SnapshotCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = maxBytes * PROTECTED_SHARE / 100;
+		this.maxEntryBytes = maxBytes / 4;
+	}
+
+	public static String key(String path, String encoding) {
+		return path + "|" + encoding;
+	}
+
+	/**
+	 * @return cached bytes (shared, must not be modified), or null on a miss
+	 */
+	public synchronized byte[] get(String key) {
+		byte[] value = protectedSegment.remove(key);
+
+		if (value != null) {
+			protectedSegment.put(key, value);
+		} else {
+			value = probation.remove(key);
+
+			if (value != null) {
+				probationBytes -= value.length;
+				protectedSegment.put(key, value);
+				protectedBytes += value.length;
+				demote();
+			}
+		}
+
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Looks an entry up without using it, i.e. without promoting it or making it recently used, for one-off reads
+	 * (e.g. range replays) which must not displace the entries of repeated requests
+	 *
+	 * @return cached bytes (shared, must not be modified), or null if not cached
+	 */
+	public synchronized byte[] peek(String key) {
+		byte[] value = protectedSegment.get(key);
+		return value != null ? value : probation.get(key);
+	}
+
+	/**
+	 * Caches encoded bytes (which must not be modified afterwards), evicting least valuable entries as needed
+	 */
+	public synchronized void put(String key, byte[] value) {
+		if (value.length > maxEntryBytes || protectedSegment.containsKey(key) || probation.containsKey(key)) {
+			return;
+		}
+
+		probation.put(key, value);
+		probationBytes += value.length;
+		evict();
+	}
+
+	/** Moves least recently used protected entries back to probation, while the protected segment is too big */
+	private void demote() {
+		Iterator<Map.Entry<String, byte[]>> it = protectedSegment.entrySet().iterator();
+
+		while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+			Map.Entry<String, byte[]> eldest = it.next();
+			it.remove();
+			protectedBytes -= eldest.getValue().length;
+			probation.put(eldest.getKey(), eldest.getValue());
+			probationBytes += eldest.getValue().length;
+		}
+
+		evict();
+	}
+
+	/** Drops least recently used entries, from probation first, while the cache is too big */
+	private void evict() {
+		Iterator<Map.Entry<String, byte[]>> it = probation.entrySet().iterator();
+
+		while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+			probationBytes -= it.next().getValue().length;
+			it.remove();
+			evictions++;
+		}
+
+		it = protectedSegment.entrySet().iterator();
+
+		while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+			protectedBytes -= it.next().getValue().length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/** @return size of the largest entry which can be cached */
+	public long getMaxEntryBytes() {
+		return maxEntryBytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return hits, misses, evictions and occupancy */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		long requests = hits + misses;
+
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("hitRatio", requests == 0 ? 0 : (double) hits / requests);
+		statistics.put("evictions", evictions);
+		statistics.put("entries", probation.size() + protectedSegment.size());
+		statistics.put("protectedEntries", protectedSegment.size());
+		statistics.put("bytes", probationBytes + protectedBytes);
+		statistics.put("maxBytes", maxBytes);
+
+		return statistics;
+	}
+}
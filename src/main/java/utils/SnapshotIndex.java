@@ -0,0 +1,609 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sorted in-memory index of the snapshot timestamps of one setup, for point-in-time lookups without directory
+ * listings. Timestamps are kept in a primitive array, together with the hour directories they were found in.
+ *
+ * The index is built once by listing all hour directories in parallel and then kept up to date incrementally, by
+ * listing only the hour directories of the last indexed minutes and any newer one. Snapshots written late or out of
+ * order in those directories are merged by indexing them again. The index can be persisted to a local append-only
+ * sidecar file, so that a restart only has to catch up with the snapshots written meanwhile.
+ */
+
+public class SnapshotIndex {
+
+	/** number of directory levels (year/month/day/hour) between the setup root and the snapshot files */
+	private static final int TIME_DIRECTORY_LEVELS = 4;
+
+	/** how long before the newest indexed snapshot snapshots may still be written (ms), as in {@link DiskUsage} */
+	private static final long LATE_GRACE = 600000;
+
+	private static final int SIDECAR_MAGIC = 0x534e4958;
+
+	private static final int SIDECAR_VERSION = 1;
+
+	private static final byte DIRECTORY_RECORD = 'D';
+
+	private static final byte TIMESTAMP_RECORD = 'T';
+
+	//snapshot root of the setup
+	private final String root;
+
+	//sidecar file, or null if the index is not persisted
+	private final File sidecar;
+
+	//lists hour directories in parallel (null to list them one after the other)
+	private final ExecutorService listingPool;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	//sorted snapshot timestamps (guarded by lock)
+	private long[] timestamps = new long[4096];
+
+	private int size;
+
+	//hour directories in chronological order, with the position of their first timestamp (guarded by lock)
+	private final List<HourDirectory> hourDirectories = new ArrayList<HourDirectory>();
+
+	//the sidecar has to be written from scratch at next update (e.g. it was missing, stale or damaged)
+	private boolean sidecarRewriteNeeded = true;
+
+	private static final Logger logger = Logger.getLogger(SnapshotIndex.class);
+
+	public SnapshotIndex(String root, File sidecar, ExecutorService listingPool) {
+		this.root = root;
+		this.sidecar = sidecar;
+		this.listingPool = listingPool;
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return newest indexed timestamp, or -1 if the index is empty */
+	public long getLastTimestamp() {
+		lock.readLock().lock();
+		try {
+			return size == 0 ? -1 : timestamps[size - 1];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return snapshot file with the timestamp closest to the given time, or null if the index is empty
+	 */
+	public File findNearest(long time) {
+		lock.readLock().lock();
+		try {
+			if (size == 0) {
+				return null;
+			}
+
+			int pos = Arrays.binarySearch(timestamps, 0, size, time);
+			if (pos < 0) {
+				int insertion = -pos - 1;
+				if (insertion == 0) {
+					pos = 0;
+				} else if (insertion == size) {
+					pos = size - 1;
+				} else {
+					pos = time - timestamps[insertion - 1] <= timestamps[insertion] - time ? insertion - 1 : insertion;
+				}
+			}
+
+			return getFile(pos);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return timestamps of all indexed snapshots in [from, to], in ascending order
+	 */
+	public long[] getRange(long from, long to) {
+		lock.readLock().lock();
+		try {
+			int start = lowerBound(from);
+			int end = lowerBound(to + 1);
+			return Arrays.copyOfRange(timestamps, start, Math.max(start, end));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of indexed snapshots in [from, to]
+	 */
+	public int count(long from, long to) {
+		lock.readLock().lock();
+		try {
+			return Math.max(0, lowerBound(to + 1) - lowerBound(from));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Samples the indexed snapshots in [from, to]: the nearest one to each step from the start of the range is
+	 * picked, each snapshot at most once. Steps nearest to an already picked snapshot are skipped over, so the work
+	 * grows with the number of snapshots picked rather than with the length of the range.
+	 *
+	 * @return timestamps of the picked snapshots, in ascending order, or null if more than max would be picked
+	 */
+	public long[] sample(long from, long to, long step, int max) {
+		lock.readLock().lock();
+		try {
+			int start = lowerBound(from);
+			int end = lowerBound(to + 1);
+			if (start >= end) {
+				return new long[0];
+			}
+
+			long[] picked = new long[(int) Math.min(Math.min(end - start, max + 1L), (to - from) / step + 1)];
+			int count = 0;
+			int pos = start;
+			long time = from;
+
+			while (true) {
+				// nearest snapshot to this step, at or after the last one picked
+				int insertion = lowerBound(time, pos, end);
+				if (insertion == end) {
+					pos = end - 1;
+				} else if (insertion > pos && time - timestamps[insertion - 1] <= timestamps[insertion] - time) {
+					pos = insertion - 1;
+				} else {
+					pos = insertion;
+				}
+
+				if (count == 0 || picked[count - 1] != timestamps[pos]) {
+					picked[count++] = timestamps[pos];
+					if (count > max) {
+						return null;
+					}
+				}
+
+				if (pos == end - 1) {
+					break;
+				}
+
+				// first step nearer to the next snapshot than to this one (ties go to the earlier snapshot)
+				long half = (timestamps[pos + 1] - timestamps[pos]) / 2;
+				long target = Math.max(time + step, timestamps[pos] + half + 1);
+				long steps = (target - from + step - 1) / step;
+				if (steps > (to - from) / step) {
+					break;
+				}
+				time = from + steps * step;
+			}
+
+			return Arrays.copyOf(picked, count);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return file of an indexed snapshot timestamp, or null if it is not indexed
+	 */
+	public File getFile(long timestamp) {
+		lock.readLock().lock();
+		try {
+			int pos = Arrays.binarySearch(timestamps, 0, size, timestamp);
+			return pos < 0 ? null : getFile(pos);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int lowerBound(long time) {
+		return lowerBound(time, 0, size);
+	}
+
+	private int lowerBound(long time, int from, int to) {
+		int pos = Arrays.binarySearch(timestamps, from, to, time);
+		return pos < 0 ? -pos - 1 : pos;
+	}
+
+	private File getFile(int pos) {
+		HourDirectory dir = hourDirectories.get(findHourDirectory(pos));
+		String name = dir.extension.isEmpty() ? Long.toString(timestamps[pos])
+				: timestamps[pos] + "." + dir.extension;
+		return new File(new File(root, dir.path), name);
+	}
+
+	/** @return index of the last hour directory starting at or before a position */
+	private int findHourDirectory(int pos) {
+		int low = 0;
+		int high = hourDirectories.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (hourDirectories.get(mid).first <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Loads the index from its sidecar file, if there is one for the same snapshot root
+	 */
+	public void load() {
+		if (sidecar == null || !sidecar.isFile()) {
+			return;
+		}
+
+		lock.writeLock().lock();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 65536))) {
+
+			if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION || !in.readUTF().equals(root)) {
+				logger.info("Ignoring index file " + sidecar + " of another snapshot root or version");
+				return;
+			}
+
+			sidecarRewriteNeeded = false;
+
+			try {
+				int record;
+				while ((record = in.read()) != -1) {
+					if (record == DIRECTORY_RECORD) {
+						hourDirectories.add(new HourDirectory(in.readUTF(), in.readUTF(), size));
+					} else if (record == TIMESTAMP_RECORD) {
+						append(in.readLong());
+					} else {
+						throw new IOException("Unknown record type " + record);
+					}
+				}
+			} catch (EOFException e) {
+				// last record cut short by a crash, a rewrite drops it
+				sidecarRewriteNeeded = true;
+			}
+
+			// drop a trailing directory without timestamps, it will be listed again anyway
+			while (!hourDirectories.isEmpty() && hourDirectories.get(hourDirectories.size() - 1).first == size) {
+				hourDirectories.remove(hourDirectories.size() - 1);
+				sidecarRewriteNeeded = true;
+			}
+
+			logger.info("Loaded " + size + " snapshot timestamps of " + root + " from " + sidecar);
+
+		} catch (IOException e) {
+			logger.warn("Could not read index file " + sidecar + ", the index will be rebuilt", e);
+			clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes snapshots which have appeared since the last update (all of them the first time), listing hour
+	 * directories in parallel, and appends them to the sidecar file. The hour directories of the last indexed minutes
+	 * are listed again, and if they hold snapshots written late (older than the newest indexed one), the index is
+	 * rebuilt from them on, and the sidecar rewritten.
+	 *
+	 * @return number of snapshots added
+	 */
+	public int update() {
+		File from;
+		int fromDirectory;
+		long last;
+
+		lock.readLock().lock();
+		try {
+			last = size == 0 ? -1 : timestamps[size - 1];
+			fromDirectory = size == 0 ? -1 : findHourDirectory(lowerBound(last - LATE_GRACE));
+			from = fromDirectory == -1 ? null : new File(root, hourDirectories.get(fromDirectory).path);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		List<File> dirs = findHourDirectories(from);
+
+		// listing is the expensive part, on NFS especially, and does not need the lock
+		List<Callable<Listing>> units = new ArrayList<Callable<Listing>>();
+		for (final File dir : dirs) {
+			units.add(new Callable<Listing>() {
+				@Override
+				public Listing call() {
+					return new Listing(dir);
+				}
+			});
+		}
+		List<Listing> listings = ParallelListing.invokeAll(listingPool, units);
+
+		List<Object> records = new ArrayList<Object>();
+		int previousSize;
+
+		lock.writeLock().lock();
+		try {
+			previousSize = size;
+
+			if (fromDirectory != -1 && hasLateTimestamps(listings, last)) {
+				// index those directories again, in order
+				size = hourDirectories.get(fromDirectory).first;
+				hourDirectories.subList(fromDirectory, hourDirectories.size()).clear();
+				last = size == 0 ? -1 : timestamps[size - 1];
+				sidecarRewriteNeeded = true;
+			}
+
+			for (Listing listing : listings) {
+				String path = relativePath(listing.dir);
+				boolean known = !hourDirectories.isEmpty()
+						&& hourDirectories.get(hourDirectories.size() - 1).path.equals(path);
+
+				for (long timestamp : listing.timestamps) {
+					if (timestamp <= last) {
+						continue;
+					}
+					if (!known) {
+						HourDirectory dir = new HourDirectory(path, listing.extension, size);
+						hourDirectories.add(dir);
+						records.add(dir);
+						known = true;
+					}
+					append(timestamp);
+					records.add(timestamp);
+					last = timestamp;
+				}
+			}
+
+			persist(records);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if (size < previousSize) {
+			logger.info("Snapshots of " + root + " removed from the last indexed minutes: " + (previousSize - size));
+		}
+		return Math.max(0, size - previousSize);
+	}
+
+	/**
+	 * @return true if the listings hold snapshots which are not indexed but older than the newest indexed one
+	 *         (called with the write lock held)
+	 */
+	private boolean hasLateTimestamps(List<Listing> listings, long last) {
+		for (Listing listing : listings) {
+			for (long timestamp : listing.timestamps) {
+				if (timestamp < last && Arrays.binarySearch(timestamps, 0, size, timestamp) < 0) {
+					logger.info("Snapshot " + timestamp + " of " + root + " written late, indexing again from "
+							+ relativePath(listing.dir));
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void append(long timestamp) {
+		if (size == timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+		}
+		timestamps[size++] = timestamp;
+	}
+
+	private void clear() {
+		size = 0;
+		hourDirectories.clear();
+		sidecarRewriteNeeded = true;
+	}
+
+	/** Appends new records to the sidecar, or rewrites it entirely if needed (called with the write lock held) */
+	private void persist(List<Object> records) {
+		if (sidecar == null || (records.isEmpty() && !sidecarRewriteNeeded)) {
+			return;
+		}
+
+		boolean rewrite = sidecarRewriteNeeded;
+		File target = rewrite ? new File(sidecar.getPath() + ".tmp") : sidecar;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(target, !rewrite), 65536))) {
+
+			if (rewrite) {
+				out.writeInt(SIDECAR_MAGIC);
+				out.writeInt(SIDECAR_VERSION);
+				out.writeUTF(root);
+
+				int next = 0;
+				for (int pos = 0; pos < size; pos++) {
+					while (next < hourDirectories.size() && hourDirectories.get(next).first == pos) {
+						writeRecord(out, hourDirectories.get(next++));
+					}
+					writeRecord(out, timestamps[pos]);
+				}
+			} else {
+				for (Object record : records) {
+					writeRecord(out, record);
+				}
+			}
+
+		} catch (IOException e) {
+			logger.warn("Could not write index file " + target, e);
+			sidecarRewriteNeeded = true;
+			return;
+		}
+
+		if (rewrite) {
+			if (target.renameTo(sidecar)) {
+				sidecarRewriteNeeded = false;
+			} else {
+				logger.warn("Could not replace index file " + sidecar);
+			}
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, Object record) throws IOException {
+		if (record instanceof HourDirectory) {
+			out.writeByte(DIRECTORY_RECORD);
+			out.writeUTF(((HourDirectory) record).path);
+			out.writeUTF(((HourDirectory) record).extension);
+		} else {
+			out.writeByte(TIMESTAMP_RECORD);
+			out.writeLong((Long) record);
+		}
+	}
+
+	private String relativePath(File dir) {
+		return new File(root).toURI().relativize(dir.toURI()).getPath();
+	}
+
+	/**
+	 * @return hour directories in chronological order, starting at the given one (all of them if null)
+	 */
+	private List<File> findHourDirectories(File from) {
+		long[] bound = null;
+
+		if (from != null) {
+			bound = new long[TIME_DIRECTORY_LEVELS];
+			File dir = from;
+			try {
+				for (int level = TIME_DIRECTORY_LEVELS - 1; level >= 0; level--) {
+					bound[level] = Long.parseLong(dir.getName());
+					dir = dir.getParentFile();
+				}
+			} catch (NumberFormatException e) {
+				bound = null;
+			}
+		}
+
+		List<File> dirs = new ArrayList<File>();
+		collectHourDirectories(new File(root), 0, bound, dirs);
+		return dirs;
+	}
+
+	private static void collectHourDirectories(File dir, int level, long[] bound, List<File> dirs) {
+		if (level == TIME_DIRECTORY_LEVELS) {
+			dirs.add(dir);
+			return;
+		}
+
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+
+		List<NumberedFile> numbered = new ArrayList<NumberedFile>();
+		for (File child : children) {
+			try {
+				long value = Long.parseLong(child.getName());
+				if (bound == null || value >= bound[level]) {
+					numbered.add(new NumberedFile(value, child));
+				}
+			} catch (NumberFormatException e) {
+				// not part of the time hierarchy
+			}
+		}
+		Collections.sort(numbered);
+
+		for (NumberedFile child : numbered) {
+			// below the bound's own branch, everything is newer and therefore unbounded
+			collectHourDirectories(child.file, level + 1,
+					bound != null && child.value == bound[level] ? bound : null, dirs);
+		}
+	}
+
+	/** Hour directory, relative to the root, with the file extension of its snapshots */
+	private static class HourDirectory {
+
+		final String path;
+
+		final String extension;
+
+		//position of the first timestamp of this directory in the index
+		final int first;
+
+		HourDirectory(String path, String extension, int first) {
+			this.path = path;
+			this.extension = extension;
+			this.first = first;
+		}
+	}
+
+	/** Sorted snapshot timestamps found in an hour directory */
+	private static class Listing {
+
+		final File dir;
+
+		long[] timestamps = new long[0];
+
+		String extension = "";
+
+		Listing(File dir) {
+			this.dir = dir;
+
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return;
+			}
+
+			long[] found = new long[files.length];
+			int count = 0;
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(".tmp")) {
+					continue;
+				}
+
+				int dot = name.indexOf('.');
+				try {
+					found[count] = Long.parseLong(dot == -1 ? name : name.substring(0, dot));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				count++;
+				extension = dot == -1 ? "" : name.substring(dot + 1);
+			}
+
+			timestamps = Arrays.copyOf(found, count);
+			Arrays.sort(timestamps);
+		}
+	}
+
+	private static class NumberedFile implements Comparable<NumberedFile> {
+
+		final long value;
+
+		final File file;
+
+		NumberedFile(long value, File file) {
+			this.value = value;
+			this.file = file;
+		}
+
+		@Override
+		public int compareTo(NumberedFile o) {
+			return Long.compare(value, o.value);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One day of trend data of one setup: a directory with one memory-mapped column file per field, plus one for the
+ * snapshot timestamps. Each column is a header followed by a fixed number of primitive slots (longs for the
+ * timestamps, doubles for the fields), filled in order, so that a row is the same slot in every column.
+ *
+ * Rows are appended in timestamp order. The number of rows is written in the header of the timestamp column after
+ * the values of the row, so a row is only visible once complete. Fields added to the configuration later get a
+ * column whose earlier rows are NaN, fields removed keep their column untouched. Older rows (back-fill) are merged
+ * into a copy of the segment, see {@link #copyMerged(File, List, long[], double[][])}, which then replaces it.
+ *
+ * Appending must be serialized by the caller; reading is safe concurrently with appending.
+ */
+
+class TrendSegment {
+
+	static final String TIME_COLUMN = "@time";
+
+	private static final String COLUMN_EXTENSION = ".col";
+
+	private static final int MAGIC = 0x44515452;
+
+	private static final int VERSION = 1;
+
+	/** bytes before the first slot: magic, version and (timestamp column only) row count */
+	private static final int HEADER = 16;
+
+	private static final int COUNT_OFFSET = 8;
+
+	/** rows per day, i.e. one snapshot every 0.66 s at most (the files are sparse until filled) */
+	static final int ROWS = 1 << 17;
+
+	private final File dir;
+
+	private final MappedByteBuffer times;
+
+	/** field columns opened so far, by field name */
+	private final ConcurrentMap<String, MappedByteBuffer> columns = new ConcurrentHashMap<String, MappedByteBuffer>();
+
+	private volatile int count;
+
+	TrendSegment(File dir) throws IOException {
+		this.dir = dir;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create trend directory " + dir);
+		}
+
+		this.times = map(new File(dir, TIME_COLUMN + COLUMN_EXTENSION));
+		this.count = (int) times.getLong(COUNT_OFFSET);
+		if (count < 0 || count > ROWS) {
+			throw new IOException("Corrupted trend column in " + dir + ": " + count + " rows");
+		}
+	}
+
+	/** @return true if a segment has been written in the given directory */
+	static boolean exists(File dir) {
+		return new File(dir, TIME_COLUMN + COLUMN_EXTENSION).isFile();
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	long getTime(int row) {
+		return times.getLong(HEADER + 8 * row);
+	}
+
+	/** @return timestamp of the last row, or Long.MIN_VALUE if there are none yet */
+	long getLastTime() {
+		int rows = count;
+		return rows > 0 ? getTime(rows - 1) : Long.MIN_VALUE;
+	}
+
+	/** @return first row with a timestamp at or after the given one (count if there are none) */
+	int findRow(long time) {
+		int low = 0;
+		int high = count - 1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (getTime(middle) < time) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/** @return values of a field in a range of rows (end excluded), NaN where the field was not recorded */
+	double[] getValues(String field, int start, int end) throws IOException {
+		double[] values = new double[end - start];
+
+		MappedByteBuffer column = getColumn(field, false);
+		if (column == null) {
+			Arrays.fill(values, Double.NaN);
+		} else {
+			for (int row = start; row < end; row++) {
+				values[row - start] = column.getDouble(HEADER + 8 * row);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Appends a row, if there is room left and it is newer than the last one
+	 *
+	 * @return true if the row was appended
+	 */
+	boolean append(long time, List<String> fields, double[] values) throws IOException {
+		int row = count;
+		if (row == ROWS || time <= getLastTime()) {
+			return false;
+		}
+
+		for (int i = 0; i < fields.size(); i++) {
+			getColumn(fields.get(i), true).putDouble(HEADER + 8 * row, values[i]);
+		}
+		times.putLong(HEADER + 8 * row, time);
+
+		// row count last, so that the row is complete in the files as well
+		times.putLong(COUNT_OFFSET, row + 1);
+		count = row + 1;
+		return true;
+	}
+
+	/** @return timestamps of all rows */
+	long[] getTimes() {
+		long[] result = new long[count];
+		for (int row = 0; row < result.length; row++) {
+			result[row] = getTime(row);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a copy of this segment, with the given rows merged in timestamp order, to an empty directory. Rows whose
+	 * timestamp is recorded already are skipped, as are the newest rows once the segment is full.
+	 *
+	 * @param rowTimes
+	 *            timestamps of the rows to merge, ascending
+	 * @param rowValues
+	 *            values of the rows to merge, in the order of the given fields
+	 * @return number of rows merged
+	 */
+	int copyMerged(File target, List<String> fields, long[] rowTimes, double[][] rowValues) throws IOException {
+		int rows = count;
+
+		// fields recorded in this segment so far, followed by the new ones
+		Set<String> names = new LinkedHashSet<String>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(COLUMN_EXTENSION) && !name.equals(TIME_COLUMN + COLUMN_EXTENSION)) {
+					names.add(name.substring(0, name.length() - COLUMN_EXTENSION.length()));
+				}
+			}
+		}
+		names.addAll(fields);
+		List<String> allFields = new ArrayList<String>(names);
+
+		double[][] columnValues = new double[allFields.size()][];
+		int[] rowIndexes = new int[allFields.size()];
+		for (int i = 0; i < columnValues.length; i++) {
+			columnValues[i] = getValues(allFields.get(i), 0, rows);
+			rowIndexes[i] = fields.indexOf(allFields.get(i));
+		}
+
+		TrendSegment copy = new TrendSegment(target);
+		double[] values = new double[allFields.size()];
+		int merged = 0;
+		int row = 0;
+		int i = 0;
+
+		while (row < rows || i < rowTimes.length) {
+			if (i == rowTimes.length || (row < rows && getTime(row) <= rowTimes[i])) {
+				if (i < rowTimes.length && getTime(row) == rowTimes[i]) {
+					i++; // recorded already
+				}
+				for (int f = 0; f < values.length; f++) {
+					values[f] = columnValues[f][row];
+				}
+				copy.append(getTime(row++), allFields, values);
+			} else {
+				for (int f = 0; f < values.length; f++) {
+					values[f] = rowIndexes[f] >= 0 ? rowValues[i][rowIndexes[f]] : Double.NaN;
+				}
+				if (copy.append(rowTimes[i++], allFields, values)) {
+					merged++;
+				}
+			}
+		}
+		return merged;
+	}
+
+	private synchronized MappedByteBuffer getColumn(String field, boolean create) throws IOException {
+		MappedByteBuffer column = columns.get(field);
+		if (column != null) {
+			return column;
+		}
+
+		File file = new File(dir, field + COLUMN_EXTENSION);
+		boolean created = !file.exists();
+		if (created && !create) {
+			return null;
+		}
+
+		column = map(file);
+		if (created) {
+			// the field was not recorded in the rows appended so far
+			for (int row = 0; row < count; row++) {
+				column.putDouble(HEADER + 8 * row, Double.NaN);
+			}
+		}
+
+		columns.put(field, column);
+		return column;
+	}
+
+	/** Maps a column file, creating it with its header if needed */
+	private static MappedByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			boolean created = channel.size() == 0;
+
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 8L * ROWS);
+
+			if (created) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+			} else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("Not a trend column: " + file);
+			}
+			return buffer;
+		}
+	}
+}
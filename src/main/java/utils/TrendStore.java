@@ -0,0 +1,464 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Time series of a configured set of scalar snapshot fields (e.g. fedBuilderSummary.rate), so that trends can be
+ * queried without decoding snapshots. The fields of every published latest snapshot are appended as a row to the
+ * segment of its setup and day (UTC), see {@link TrendSegment}, under root/setup/yyyy-mm-dd.
+ *
+ * Fields are given like projections (JSON Pointers or dotted paths) and named by their dotted path. Numbers and
+ * booleans are recorded as doubles, missing or other values as NaN.
+ *
+ * Published snapshots are parsed by a single thread of their own, so that publication (on the discovery threads)
+ * does not wait for it. Only the newest snapshot waiting to be recorded is kept per setup, older ones are dropped.
+ */
+
+public class TrendStore implements LatestSnapshotListener {
+
+	private static final long DAY = 86400000;
+
+	/** suffixes of the directories of a segment being replaced by a merged copy */
+	private static final String MERGE_SUFFIX = ".merge";
+
+	private static final String OLD_SUFFIX = ".old";
+
+	/** segments kept mapped, the least recently used ones being dropped first */
+	private static final int MAX_OPEN_SEGMENTS = 64;
+
+	private final File root;
+
+	private final FieldProjection projection;
+
+	private final List<String> fields;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	/** newest snapshot waiting to be recorded, by setup name */
+	private final ConcurrentMap<String, LatestSnapshot> pending = new ConcurrentHashMap<String, LatestSnapshot>();
+
+	private final ExecutorService ingest = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "trend-ingest");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	//open segments, by setup and day (guarded by this)
+	private final Map<String, TrendSegment> segments = new LinkedHashMap<String, TrendSegment>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TrendSegment> eldest) {
+			return size() > MAX_OPEN_SEGMENTS;
+		}
+	};
+
+	private static final Logger logger = Logger.getLogger(TrendStore.class);
+
+	/**
+	 * @param fields
+	 *            comma-separated fields to record
+	 * @throws RuntimeException
+	 *             if no fields or invalid fields are given
+	 */
+	public TrendStore(File root, String fields) {
+		this.root = root;
+		this.projection = FieldProjection.parse(fields);
+		if (projection == null) {
+			throw new RuntimeException("No trend fields given");
+		}
+		this.fields = Collections.unmodifiableList(getNames(projection));
+	}
+
+	/** @return names of the recorded fields, in the order of the values of a row */
+	public List<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return dotted names of the given fields (JSON Pointers or dotted paths)
+	 * @throws RuntimeException
+	 *             if a field is invalid
+	 */
+	public static List<String> getNames(String fields) {
+		FieldProjection projection = FieldProjection.parse(fields);
+		return projection != null ? getNames(projection) : Collections.<String> emptyList();
+	}
+
+	private static List<String> getNames(FieldProjection projection) {
+		List<String> names = new ArrayList<String>();
+
+		for (JsonPointer pointer : projection.getPointers()) {
+			StringBuilder name = new StringBuilder();
+			for (JsonPointer p = pointer; !p.matches(); p = p.tail()) {
+				name.append(name.length() == 0 ? "" : ".").append(p.getMatchingProperty());
+			}
+
+			// names are column file names
+			String field = name.toString();
+			if (field.isEmpty() || field.indexOf('/') >= 0 || field.indexOf('\0') >= 0 || field.startsWith(".")) {
+				throw new RuntimeException("Invalid trend field: " + pointer);
+			}
+			names.add(field);
+		}
+		return names;
+	}
+
+	@Override
+	public void latestSnapshotPublished(DAQSetup setup, LatestSnapshot snapshot) {
+		final String name = setup.getName();
+
+		// a recording already queued for the setup will take this snapshot instead
+		if (pending.put(name, snapshot) != null) {
+			return;
+		}
+
+		try {
+			ingest.execute(new Runnable() {
+				@Override
+				public void run() {
+					LatestSnapshot newest = pending.remove(name);
+					if (newest != null) {
+						record(name, newest);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(name, snapshot); // shut down
+		}
+	}
+
+	/**
+	 * Stops recording published snapshots, dropping the pending ones
+	 */
+	public void shutdown() {
+		ingest.shutdownNow();
+		pending.clear();
+	}
+
+	private void record(String setup, LatestSnapshot snapshot) {
+		long tic = System.nanoTime();
+
+		try {
+			append(setup, snapshot.getTimestamp(), extract(objectMapper.getFactory().createParser(snapshot.getJson())));
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Could not record trend of " + setup + " from snapshot " + snapshot.getFileName() + ": " + e);
+		}
+
+		Metrics.trendIngest.recordSince(tic);
+	}
+
+	/**
+	 * Reads the recorded fields from an encoded snapshot (of any format), closing the parser
+	 *
+	 * @return values, in the order of {@link #getFields()}
+	 */
+	public double[] extract(JsonParser parser) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+		projection.project(parser, objectMapper.getFactory().createGenerator(baos));
+		JsonNode selected = objectMapper.readTree(baos.toByteArray());
+
+		List<JsonPointer> pointers = projection.getPointers();
+		double[] values = new double[pointers.size()];
+
+		for (int i = 0; i < values.length; i++) {
+			JsonNode node = selected.at(pointers.get(i));
+			if (node.isNumber()) {
+				values[i] = node.doubleValue();
+			} else if (node.isBoolean()) {
+				values[i] = node.booleanValue() ? 1 : 0;
+			} else {
+				values[i] = Double.NaN;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Appends a row to the segment of its day, if it is newer than the last row of that day
+	 *
+	 * @return true if the row was appended
+	 */
+	public synchronized boolean append(String setup, long timestamp, double[] values) throws IOException {
+		TrendSegment segment = getSegment(setup, Math.floorDiv(timestamp, DAY), true);
+
+		if (segment.getCount() == TrendSegment.ROWS) {
+			logger.warn("Trend segment of " + setup + " for " + LocalDate.ofEpochDay(Math.floorDiv(timestamp, DAY))
+					+ " is full, dropping row " + timestamp);
+			return false;
+		}
+		return segment.append(timestamp, fields, values);
+	}
+
+	/**
+	 * @return timestamps of the rows recorded on the day of the given timestamp, ascending
+	 */
+	public long[] getTimestamps(String setup, long timestamp) throws IOException {
+		TrendSegment segment = getSegment(setup, Math.floorDiv(timestamp, DAY), false);
+		return segment != null ? segment.getTimes() : new long[0];
+	}
+
+	/**
+	 * Merges older rows (e.g. back-filled ones) into the segment of their day: the segment is copied with the rows
+	 * inserted in timestamp order, and the copy replaces it. Rows appended meanwhile wait for the copy.
+	 *
+	 * @param timestamps
+	 *            timestamps of the rows, ascending and all on the same day
+	 * @param values
+	 *            values of each row, in the order of {@link #getFields()}
+	 * @return number of rows merged, rows recorded already being skipped
+	 */
+	public synchronized int merge(String setup, long[] timestamps, double[][] values) throws IOException {
+		if (timestamps.length == 0) {
+			return 0;
+		}
+
+		long day = Math.floorDiv(timestamps[0], DAY);
+		TrendSegment segment = getSegment(setup, day, true);
+		File dir = new File(new File(root, setup), LocalDate.ofEpochDay(day).toString());
+		File copy = new File(dir.getPath() + MERGE_SUFFIX);
+		File old = new File(dir.getPath() + OLD_SUFFIX);
+
+		delete(copy);
+		int merged = segment.copyMerged(copy, fields, timestamps, values);
+		if (merged == 0) {
+			delete(copy);
+			return 0;
+		}
+
+		// readers of the replaced segment keep their mappings
+		if (!dir.renameTo(old) || !copy.renameTo(dir)) {
+			throw new IOException("Could not replace trend segment " + dir);
+		}
+		delete(old);
+
+		segments.put(setup + "/" + day, new TrendSegment(dir));
+		return merged;
+	}
+
+	/**
+	 * Downsamples recorded fields in a time range: the range is split into intervals of equal length, and the
+	 * minimum, maximum and average of each field in each interval is computed.
+	 *
+	 * @param points
+	 *            number of intervals (at most)
+	 * @return series of the given fields, by name (intervals with no values are left out)
+	 */
+	public Map<String, Series> query(String setup, List<String> queryFields, long from, long to, int points)
+			throws IOException {
+		long interval = Math.max(1, (to - from + points - 1) / points);
+		int buckets = (int) Math.min(points, (to - from) / interval + 1);
+
+		Map<String, Series> result = new LinkedHashMap<String, Series>();
+		for (String field : queryFields) {
+			result.put(field, new Series(from, interval, buckets));
+		}
+
+		for (long day = Math.floorDiv(from, DAY); day <= Math.floorDiv(to, DAY); day++) {
+			TrendSegment segment = getSegment(setup, day, false);
+			if (segment == null) {
+				continue;
+			}
+
+			int start = segment.findRow(from);
+			int end = segment.findRow(to + 1);
+			if (start >= end) {
+				continue;
+			}
+
+			int[] rowBuckets = new int[end - start];
+			for (int row = start; row < end; row++) {
+				// the end of the range falls in the last interval
+				rowBuckets[row - start] = (int) Math.min(buckets - 1, (segment.getTime(row) - from) / interval);
+			}
+
+			for (String field : queryFields) {
+				result.get(field).add(rowBuckets, segment.getValues(field, start, end));
+			}
+		}
+
+		for (Series series : result.values()) {
+			series.compact();
+		}
+		return result;
+	}
+
+	private synchronized TrendSegment getSegment(String setup, long day, boolean create) throws IOException {
+		String key = setup + "/" + day;
+		TrendSegment segment = segments.get(key);
+
+		if (segment == null) {
+			File dir = new File(new File(root, setup), LocalDate.ofEpochDay(day).toString());
+
+			// interrupted while replacing the segment by a merged copy
+			File old = new File(dir.getPath() + OLD_SUFFIX);
+			if (!TrendSegment.exists(dir) && TrendSegment.exists(old)) {
+				delete(dir);
+				if (!old.renameTo(dir)) {
+					throw new IOException("Could not restore trend segment " + dir);
+				}
+			}
+
+			if (!create && !TrendSegment.exists(dir)) {
+				return null;
+			}
+
+			segment = new TrendSegment(dir);
+			segments.put(key, segment);
+		}
+		return segment;
+	}
+
+	/** Deletes a segment directory, if any */
+	private static void delete(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			if (!file.delete()) {
+				throw new IOException("Could not delete " + file);
+			}
+		}
+		if (!dir.delete()) {
+			throw new IOException("Could not delete " + dir);
+		}
+	}
+
+	/**
+	 * Downsampled series of one field: start time, value count, minimum, maximum and average of each interval with
+	 * values
+	 */
+	public static class Series {
+
+		private final long from;
+
+		private final long interval;
+
+		private long[] time;
+
+		private int[] count;
+
+		private double[] min;
+
+		private double[] max;
+
+		private double[] avg;
+
+		Series(long from, long interval, int buckets) {
+			this.from = from;
+			this.interval = interval;
+			this.count = new int[buckets];
+			this.min = new double[buckets];
+			this.max = new double[buckets];
+			this.avg = new double[buckets]; // sums until compacted
+		}
+
+		void add(int[] buckets, double[] values) {
+			for (int i = 0; i < values.length; i++) {
+				double value = values[i];
+				if (Double.isNaN(value)) {
+					continue;
+				}
+
+				int bucket = buckets[i];
+				if (count[bucket] == 0) {
+					min[bucket] = value;
+					max[bucket] = value;
+				} else {
+					min[bucket] = Math.min(min[bucket], value);
+					max[bucket] = Math.max(max[bucket], value);
+				}
+				avg[bucket] += value;
+				count[bucket]++;
+			}
+		}
+
+		/** Leaves out intervals with no values and turns sums into averages */
+		void compact() {
+			int size = 0;
+			for (int bucket = 0; bucket < count.length; bucket++) {
+				if (count[bucket] > 0) {
+					size++;
+				}
+			}
+
+			long[] newTime = new long[size];
+			int[] newCount = new int[size];
+			double[] newMin = new double[size];
+			double[] newMax = new double[size];
+			double[] newAvg = new double[size];
+
+			int i = 0;
+			for (int bucket = 0; bucket < count.length; bucket++) {
+				if (count[bucket] > 0) {
+					newTime[i] = from + bucket * interval;
+					newCount[i] = count[bucket];
+					newMin[i] = min[bucket];
+					newMax[i] = max[bucket];
+					newAvg[i] = avg[bucket] / count[bucket];
+					i++;
+				}
+			}
+
+			time = newTime;
+			count = newCount;
+			min = newMin;
+			max = newMax;
+			avg = newAvg;
+		}
+
+		/** @return length of the intervals (ms) */
+		public long getInterval() {
+			return interval;
+		}
+
+		/** @return start of each interval (unix ms) */
+		public long[] getTime() {
+			return time;
+		}
+
+		/** @return number of values in each interval */
+		public int[] getCount() {
+			return count;
+		}
+
+		public double[] getMin() {
+			return min;
+		}
+
+		public double[] getMax() {
+			return max;
+		}
+
+		public double[] getAvg() {
+			return avg;
+		}
+	}
+}